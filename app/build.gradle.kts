@@ -31,6 +31,36 @@ android {
         sourceCompatibility = JavaVersion.VERSION_11
         targetCompatibility = JavaVersion.VERSION_11
     }
+    testOptions {
+        unitTests {
+            // Framework classes come from Robolectric, the stubbed android.jar throws on every call
+            isIncludeAndroidResources = true
+            all {
+                // Budgeted soak runs belong to soakTest
+                it.exclude("**/*StressTest*")
+            }
+        }
+    }
+}
+
+// Runs the stress tests against their latency and allocation budgets, e.g. for a long soak
+// ./gradlew soakTest -PsoakEvents=2000000000 -PsoakSeed=7
+val soakTest = tasks.register<Test>("soakTest") {
+    description = "Runs the stress tests against their latency and allocation budgets."
+    group = "verification"
+
+    // Same compiled tests and classpath as the debug unit tests, only the stress tests selected
+    val unitTest = tasks.named<Test>("testDebugUnitTest").get()
+    testClassesDirs = unitTest.testClassesDirs
+    classpath = unitTest.classpath
+    filter.includeTestsMatching("*StressTest")
+    for (name in listOf("soakEvents", "soakSeed")) {
+        providers.gradleProperty(name).orNull?.let { systemProperty(name, it) }
+    }
+}
+
+tasks.named("check") {
+    dependsOn(soakTest)
 }
 
 dependencies {
@@ -39,6 +69,7 @@ dependencies {
     implementation(libs.activity)
     implementation(libs.constraintlayout)
     testImplementation(libs.junit)
+    testImplementation(libs.robolectric)
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
 }
\ No newline at end of file
@@ -10,6 +10,7 @@ import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
@@ -17,7 +18,10 @@ import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import androidx.appcompat.app.AppCompatActivity;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.nio.charset.StandardCharsets;
@@ -59,6 +63,16 @@ public class BlePeripheralDevice {
     private BluetoothGattServer gattServer;
     private Queue<BluetoothGattService> addServiceQueue;
 
+    // Reliable delivery over SAKE notifications, polled on the main thread
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final GattRequestHandler<BluetoothDevice> gattRequests;
+    private BluetoothGattCharacteristic sakeCharacteristic;
+
+    // Session snapshot that survives process death, shared with other instances in the process
+    private final SessionStoreHolder sessions;
+    private final SessionStore sessionStore;
+    private boolean closed;
+
     // Permission check method
     public boolean hasBluetoothPermissions() {
         // For API 31+ (Android 12+), we need BLUETOOTH_CONNECT and BLUETOOTH_ADVERTISE
@@ -83,28 +97,29 @@ public class BlePeripheralDevice {
 
     public BlePeripheralDevice(Context context) {
         this.context = context;
+
+        sessions = SessionStoreHolder.acquire(context.getNoBackupFilesDir());
+        sessionStore = sessions.getStore();
+        gattRequests = new GattRequestHandler<>(gatt, scheduler, SystemClock::uptimeMillis, sessionStore);
+
         initializeBluetooth();
     }
 
-    // Method to request Bluetooth permissions
-    public void requestBluetoothPermissions() {
-        if (context instanceof AppCompatActivity) {
-            AppCompatActivity activity = (AppCompatActivity) context;
-
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.S) {
-                // For Android 12+
-                activity.requestPermissions(new String[]{
-                        android.Manifest.permission.BLUETOOTH_CONNECT,
-                        android.Manifest.permission.BLUETOOTH_ADVERTISE
-                }, 101);
-            } else if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-                // For Android 6.0 - 11
-                activity.requestPermissions(new String[]{
-                        android.Manifest.permission.ACCESS_FINE_LOCATION
-                }, 101);
-            }
-            // For Android < 6.0, no runtime permissions needed
+    // Method to request Bluetooth permissions, from the activity currently showing
+    public void requestBluetoothPermissions(AppCompatActivity activity) {
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.S) {
+            // For Android 12+
+            activity.requestPermissions(new String[]{
+                    android.Manifest.permission.BLUETOOTH_CONNECT,
+                    android.Manifest.permission.BLUETOOTH_ADVERTISE
+            }, 101);
+        } else if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
+            // For Android 6.0 - 11
+            activity.requestPermissions(new String[]{
+                    android.Manifest.permission.ACCESS_FINE_LOCATION
+            }, 101);
         }
+        // For Android < 6.0, no runtime permissions needed
     }
 
     private void initializeBluetooth() {
@@ -144,8 +159,98 @@ public class BlePeripheralDevice {
     public void stop() {
         stopAdvertising();
         stopGattServer();
+        gattRequests.reset();
+        if (!closed) {
+            sessions.saveNow();
+        }
+    }
+
+    // Stops the peripheral and releases the session store, the instance is unusable afterwards
+    public void close() {
+        if (closed) {
+            return;
+        }
+        stop();
+        closed = true;
+        sessions.release();
+    }
+
+    // Persisted state of a device, restored from the last snapshot on first access
+    public SessionState getSessionState(String address) {
+        return sessionStore.get(address);
+    }
+
+    // Sends data to the connected central over the SAKE characteristic with guaranteed delivery
+    public void sendReliable(byte[] data) {
+        if (sakeCharacteristic == null || !gattRequests.sendReliable(data)) {
+            Log.e(TAG, "No connected device for reliable transfer");
+        }
     }
 
+    private final GattRequestHandler.Scheduler scheduler = new GattRequestHandler.Scheduler() {
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            handler.postDelayed(task, delayMs);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            handler.removeCallbacks(task);
+        }
+    };
+
+    // The framework calls behind the handler, permission failures are logged and reported as not sent
+    private final GattRequestHandler.Gatt<BluetoothDevice> gatt = new GattRequestHandler.Gatt<BluetoothDevice>() {
+        @Override
+        public String getAddress(BluetoothDevice device) {
+            return device.getAddress();
+        }
+
+        @Override
+        public boolean isBonded(BluetoothDevice device) {
+            try {
+                return device.getBondState() == BluetoothDevice.BOND_BONDED;
+            } catch (SecurityException e) {
+                Log.e(TAG, "Security exception when reading bond state: " + e.getMessage());
+                return false;
+            }
+        }
+
+        @Override
+        public boolean sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+            BluetoothGattServer server = gattServer;
+            if (server == null) {
+                return false;
+            }
+            try {
+                return server.sendResponse(device, requestId, status, offset, value);
+            } catch (SecurityException e) {
+                Log.e(TAG, "Security exception when sending response: " + e.getMessage());
+                return false;
+            }
+        }
+
+        // The characteristic value is only used below API 33, where it is the only way to notify
+        @Override
+        @SuppressWarnings("deprecation")
+        public boolean notifySake(BluetoothDevice device, byte[] frame) {
+            BluetoothGattServer server = gattServer;
+            if (server == null || sakeCharacteristic == null) {
+                return false;
+            }
+            try {
+                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.TIRAMISU) {
+                    return server.notifyCharacteristicChanged(device, sakeCharacteristic, false, frame) == BluetoothStatusCodes.SUCCESS;
+                }
+                sakeCharacteristic.setValue(frame);
+                return server.notifyCharacteristicChanged(device, sakeCharacteristic, false);
+            } catch (SecurityException e) {
+                Log.e(TAG, "Security exception when sending notification: " + e.getMessage());
+                return false;
+            }
+        }
+    };
+
     private void startAdvertising() {
         advertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
         if (advertiser == null) {
@@ -350,6 +455,7 @@ public class BlePeripheralDevice {
         sakeChar.addDescriptor(cccDescriptor);
 
         service.addCharacteristic(sakeChar);
+        sakeCharacteristic = sakeChar;
 
         return service;
     }
@@ -419,6 +525,16 @@ public class BlePeripheralDevice {
                 Log.i(TAG, "Device connected: " + deviceAddress);
                 Log.d(TAG, "Connection status: " + status);
 
+                gattRequests.onConnected(device);
+
+                // Looked up without creating a record, any central may connect
+                SessionState session = device != null ? sessionStore.peek(deviceAddress) : null;
+                if (session != null) {
+                    // ATT MTU is renegotiated on every connection, the stored one is informational
+                    Log.d(TAG, "Session for " + deviceAddress + ": CCC " + session.getCccValue() +
+                            ", MTU " + session.getMtu() + ", history position " + session.getHistoryPosition());
+                }
+
                 // Stop advertising when connected
                 stopAdvertising();
 
@@ -434,6 +550,8 @@ public class BlePeripheralDevice {
                 Log.i(TAG, "Device disconnected: " + deviceAddress);
                 Log.d(TAG, "Disconnection status: " + status);
 
+                gattRequests.onDisconnected(device);
+
                 // Restart advertising when disconnected
                 startAdvertising();
             }
@@ -495,12 +613,9 @@ public class BlePeripheralDevice {
             Log.d(TAG, "Value: " + bytesToHex(value));
             Log.d(TAG, "Prepared write: " + preparedWrite + ", Response needed: " + responseNeeded);
 
-            if (responseNeeded) {
-                try {
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
-                } catch (SecurityException e) {
-                    Log.e(TAG, "Security exception in write request: " + e.getMessage());
-                }
+            boolean sake = characteristic.getUuid().equals(SAKE_CHARACTERISTIC_UUID);
+            if (gattRequests.onCharacteristicWrite(device, requestId, sake, preparedWrite, responseNeeded, offset, value)) {
+                Log.d(TAG, "SAKE ACK, window: " + gattRequests.getSakeSender().getWindow());
             }
         }
 
@@ -511,18 +626,19 @@ public class BlePeripheralDevice {
             Log.i(TAG, "Descriptor read request from: " + device.getAddress());
             Log.d(TAG, "Descriptor UUID: " + descriptor.getUuid());
 
-            try {
-                // For CCC descriptor, return current value (0 by default)
-                byte[] value = descriptor.getValue();
+            // For CCC descriptor, return the value this device subscribed with
+            byte[] value;
+            if (descriptor.getUuid().equals(CCC_DESCRIPTOR_UUID)) {
+                value = gattRequests.onCccRead(device, requestId, offset);
+            } else {
+                value = descriptor.getValue();
                 if (value == null) {
                     value = new byte[]{0x00, 0x00}; // Default CCC value
                 }
-                gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
-
-                Log.d(TAG, "Sent descriptor value: " + bytesToHex(value));
-            } catch (SecurityException e) {
-                Log.e(TAG, "Security exception in descriptor read request: " + e.getMessage());
+                gatt.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
             }
+
+            Log.d(TAG, "Sent descriptor value: " + bytesToHex(value));
         }
 
         @Override
@@ -533,29 +649,29 @@ public class BlePeripheralDevice {
             Log.d(TAG, "Descriptor UUID: " + descriptor.getUuid());
             Log.d(TAG, "Value: " + bytesToHex(value));
 
-            if (descriptor.getUuid().equals(CCC_DESCRIPTOR_UUID)) {
-                int cccValue = (value[1] << 8) | (value[0] & 0xFF);
-
-                if ((cccValue & 0x0001) != 0) {
-                    Log.i(TAG, "Client subscribed to NOTIFICATIONS");
-                }
-                if ((cccValue & 0x0002) != 0) {
-                    Log.i(TAG, "Client subscribed to INDICATIONS");
-                }
-                if (cccValue == 0x0000) {
-                    Log.i(TAG, "Client unsubscribed from notifications/indications");
-                }
-            }
-
             // Update descriptor value
             descriptor.setValue(value);
 
-            if (responseNeeded) {
-                try {
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
-                } catch (SecurityException e) {
-                    Log.e(TAG, "Security exception in descriptor write request: " + e.getMessage());
+            if (!descriptor.getUuid().equals(CCC_DESCRIPTOR_UUID)) {
+                if (responseNeeded) {
+                    gatt.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
                 }
+                return;
+            }
+
+            int cccValue = gattRequests.onCccWrite(device, requestId, responseNeeded, offset, value);
+            if (cccValue < 0) {
+                Log.w(TAG, "Rejected malformed CCC value");
+                return;
+            }
+            if ((cccValue & 0x0001) != 0) {
+                Log.i(TAG, "Client subscribed to NOTIFICATIONS");
+            }
+            if ((cccValue & 0x0002) != 0) {
+                Log.i(TAG, "Client subscribed to INDICATIONS");
+            }
+            if (cccValue == 0x0000) {
+                Log.i(TAG, "Client unsubscribed from notifications/indications");
             }
         }
 
@@ -563,18 +679,23 @@ public class BlePeripheralDevice {
         public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
             super.onExecuteWrite(device, requestId, execute);
             Log.d(TAG, "Execute write from: " + device.getAddress() + ", Execute: " + execute);
+
+            gattRequests.onExecuteWrite(device, requestId);
         }
 
         @Override
         public void onNotificationSent(BluetoothDevice device, int status) {
             super.onNotificationSent(device, status);
             Log.d(TAG, "Notification sent to: " + device.getAddress() + ", Status: " + status);
+
+            gattRequests.onNotificationSent();
         }
 
         @Override
         public void onMtuChanged(BluetoothDevice device, int mtu) {
             super.onMtuChanged(device, mtu);
             Log.i(TAG, "MTU changed for device: " + device.getAddress() + ", New MTU: " + mtu);
+            gattRequests.onMtuChanged(device, mtu);
         }
 
         @Override
@@ -0,0 +1,196 @@
+package me.palmarci.pumpconnector;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Framework independent part of the GATT server: tracks the connected central, runs the
+ * reliable SAKE transfer and answers the requests that touch session state.
+ *
+ * {@link BlePeripheralDevice} forwards its callbacks here and supplies the radio, a scheduler
+ * and a clock, so the same code runs on the JVM against fakes and virtual time.
+ *
+ * @param <D> the device handle, BluetoothDevice on Android
+ */
+class GattRequestHandler<D> {
+    // Same values as BluetoothGatt
+    static final int GATT_SUCCESS = 0;
+    static final int GATT_INVALID_ATTRIBUTE_LENGTH = 0x0d;
+    static final int CCC_NOTIFICATIONS = 0x0001;
+    static final long SAKE_POLL_INTERVAL_MS = 20;
+
+    interface Gatt<D> {
+        String getAddress(D device);
+
+        boolean isBonded(D device);
+
+        boolean sendResponse(D device, int requestId, int status, int offset, byte[] value);
+
+        // Queues one notification on the SAKE characteristic
+        boolean notifySake(D device, byte[] value);
+    }
+
+    interface Scheduler {
+        void postDelayed(Runnable task, long delayMs);
+
+        void cancel(Runnable task);
+    }
+
+    private final Gatt<D> gatt;
+    private final Scheduler scheduler;
+    private final SessionStore sessionStore;
+    private final SlidingWindowSender sakeSender;
+
+    private volatile D connectedDevice;
+
+    // Subscriptions of centrals that are not bonded, they last for the connection only
+    private final Map<D, Integer> connectionCcc = new ConcurrentHashMap<>();
+
+    private final Runnable sakePollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sakeSender.poll();
+            if (!sakeSender.isIdle()) {
+                scheduler.postDelayed(this, SAKE_POLL_INTERVAL_MS);
+            }
+        }
+    };
+
+    GattRequestHandler(Gatt<D> gatt, Scheduler scheduler, LongSupplier clock, SessionStore sessionStore) {
+        this.gatt = gatt;
+        this.scheduler = scheduler;
+        this.sessionStore = sessionStore;
+        this.sakeSender = new SlidingWindowSender(this::notifySake, clock);
+    }
+
+    SlidingWindowSender getSakeSender() {
+        return sakeSender;
+    }
+
+    void onConnected(D device) {
+        D current = connectedDevice;
+        if (current == null || current.equals(device)) {
+            connectedDevice = device;
+        } else if (sakeSender.isIdle()) {
+            // Frame size and timers were tuned for the previous central
+            reset();
+            connectedDevice = device;
+        }
+        // Otherwise the transfer stays with the central it was started for
+    }
+
+    void onDisconnected(D device) {
+        if (device != null) {
+            connectionCcc.remove(device);
+        }
+        // Unacknowledged frames are dropped, the central starts over on reconnect
+        if (device != null && device.equals(connectedDevice)) {
+            reset();
+        }
+    }
+
+    // Returns false if no central is connected. Frames are held back until it subscribes to notifications.
+    boolean sendReliable(byte[] data) {
+        if (connectedDevice == null) {
+            return false;
+        }
+
+        sakeSender.offer(data);
+        scheduler.cancel(sakePollRunnable);
+        scheduler.postDelayed(sakePollRunnable, SAKE_POLL_INTERVAL_MS);
+        return true;
+    }
+
+    // Returns true if the write was an ACK for the running transfer
+    boolean onCharacteristicWrite(D device, int requestId, boolean sakeCharacteristic, boolean preparedWrite,
+                                  boolean responseNeeded, int offset, byte[] value) {
+        // ACKs are only expected from the central receiving the transfer while it runs, and never
+        // as queued prepared-write fragments that Execute Write has not confirmed yet
+        boolean ack = sakeCharacteristic && !preparedWrite && isTransferDevice(device) && !sakeSender.isIdle()
+                && sakeSender.onAck(value);
+
+        if (responseNeeded) {
+            gatt.sendResponse(device, requestId, GATT_SUCCESS, offset, value);
+        }
+        return ack;
+    }
+
+    // Returns the value this device subscribed with (0 by default)
+    byte[] onCccRead(D device, int requestId, int offset) {
+        int cccValue = cccValue(device);
+        byte[] value = {(byte) cccValue, (byte) (cccValue >> 8)};
+        gatt.sendResponse(device, requestId, GATT_SUCCESS, offset, value);
+        return value;
+    }
+
+    // Returns the new CCC value, or -1 if the write was malformed and rejected
+    int onCccWrite(D device, int requestId, boolean responseNeeded, int offset, byte[] value) {
+        int cccValue = -1;
+        int status = GATT_INVALID_ATTRIBUTE_LENGTH;
+        if (value != null && value.length >= 2) {
+            status = GATT_SUCCESS;
+            cccValue = ((value[1] & 0xFF) << 8) | (value[0] & 0xFF);
+            // Subscriptions of bonded devices persist across connections, so a reconnecting pump is
+            // notified without subscribing again. Unsubscribing an unknown device stores nothing.
+            if (gatt.isBonded(device)) {
+                connectionCcc.remove(device);
+                sessionStore.get(gatt.getAddress(device)).setCccValue(cccValue);
+            } else {
+                connectionCcc.put(device, cccValue);
+            }
+        }
+
+        if (responseNeeded) {
+            gatt.sendResponse(device, requestId, status, offset, value);
+        }
+        return cccValue;
+    }
+
+    void onExecuteWrite(D device, int requestId) {
+        // The central waits for the Execute Write response before sending anything else
+        gatt.sendResponse(device, requestId, GATT_SUCCESS, 0, null);
+    }
+
+    void onNotificationSent() {
+        // Lost notifications are recovered by the retransmission timer
+        sakeSender.onFrameSent();
+    }
+
+    void onMtuChanged(D device, int mtu) {
+        // Frames must fit the central receiving them, not whichever one negotiated last
+        if (isTransferDevice(device)) {
+            sakeSender.setMtu(mtu);
+        }
+        // Informational only, so it does not create a record for a device without a session
+        SessionState session = sessionStore.peek(gatt.getAddress(device));
+        if (session != null) {
+            session.setMtu(mtu);
+        }
+    }
+
+    void reset() {
+        scheduler.cancel(sakePollRunnable);
+        sakeSender.reset();
+        connectedDevice = null;
+    }
+
+    private boolean isTransferDevice(D device) {
+        return device != null && device.equals(connectedDevice);
+    }
+
+    private int cccValue(D device) {
+        Integer cccValue = connectionCcc.get(device);
+        if (cccValue != null) {
+            return cccValue;
+        }
+        SessionState session = sessionStore.peek(gatt.getAddress(device));
+        return session != null ? session.getCccValue() : 0;
+    }
+
+    // A refused frame is retried on the next poll, so a transfer resumes once the central subscribes
+    private boolean notifySake(byte[] frame) {
+        D device = connectedDevice;
+        return device != null && (cccValue(device) & CCC_NOTIFICATIONS) != 0 && gatt.notifySake(device, frame);
+    }
+}
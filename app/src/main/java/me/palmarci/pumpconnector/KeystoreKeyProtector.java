@@ -0,0 +1,83 @@
+package me.palmarci.pumpconnector;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Wraps SAKE keys with AES-GCM under a key that never leaves the Android Keystore.
+ *
+ * Wrapped layout: IV (12) | ciphertext | tag (16)
+ */
+final class KeystoreKeyProtector implements SessionStore.KeyProtector {
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String ALIAS = "me.palmarci.pumpconnector.sessions";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    private SecretKey secretKey;
+
+    @Override
+    public byte[] wrap(byte[] key, byte[] associatedData) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        // The keystore picks a fresh IV for every encryption
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey());
+        cipher.updateAAD(associatedData);
+        byte[] iv = cipher.getIV();
+        byte[] sealed = cipher.doFinal(key);
+
+        byte[] wrapped = new byte[iv.length + sealed.length];
+        System.arraycopy(iv, 0, wrapped, 0, iv.length);
+        System.arraycopy(sealed, 0, wrapped, iv.length, sealed.length);
+        return wrapped;
+    }
+
+    @Override
+    public byte[] unwrap(byte[] wrappedKey, byte[] associatedData) throws GeneralSecurityException {
+        if (wrappedKey.length < IV_LENGTH + TAG_BITS / 8) {
+            throw new GeneralSecurityException("Wrapped key truncated");
+        }
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, secretKey(), new GCMParameterSpec(TAG_BITS, wrappedKey, 0, IV_LENGTH));
+        cipher.updateAAD(associatedData);
+        return cipher.doFinal(wrappedKey, IV_LENGTH, wrappedKey.length - IV_LENGTH);
+    }
+
+    // Created on first use, so devices that never store a key never touch the keystore
+    private synchronized SecretKey secretKey() throws GeneralSecurityException {
+        if (secretKey != null) {
+            return secretKey;
+        }
+
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        try {
+            keyStore.load(null);
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Keystore not available", e);
+        }
+        Key existing = keyStore.getKey(ALIAS, null);
+        if (existing instanceof SecretKey) {
+            secretKey = (SecretKey) existing;
+            return secretKey;
+        }
+
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        secretKey = generator.generateKey();
+        return secretKey;
+    }
+}
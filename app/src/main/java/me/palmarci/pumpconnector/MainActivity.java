@@ -1,11 +1,15 @@
 package me.palmarci.pumpconnector;
 
+import android.app.Application;
 import android.os.Bundle;
 import androidx.activity.EdgeToEdge;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
+import androidx.lifecycle.AndroidViewModel;
+import androidx.lifecycle.ViewModelProvider;
 import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
@@ -15,6 +19,22 @@ import me.palmarci.pumpconnector.BlePeripheralDevice;
 
 public class MainActivity extends AppCompatActivity implements View.OnClickListener {
 
+    // Outlives configuration changes, so rotating the phone keeps the pump connected
+    public static class PeripheralModel extends AndroidViewModel {
+        final BlePeripheralDevice ble;
+
+        public PeripheralModel(@NonNull Application application) {
+            super(application);
+            ble = new BlePeripheralDevice(application);
+        }
+
+        @Override
+        protected void onCleared() {
+            // Only once the activity is finished for good
+            ble.close();
+        }
+    }
+
     BlePeripheralDevice ble;
 
     @Override
@@ -28,7 +48,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
             return insets;
         });
 
-        this.ble = new BlePeripheralDevice(MainActivity.this);
+        this.ble = new ViewModelProvider(this).get(PeripheralModel.class).ble;
 
         Button btn = (Button) findViewById(R.id.start_gatt);
         btn.setOnClickListener(MainActivity.this);
@@ -38,7 +58,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     @Override
     public void onClick(View v) {
 
-        this.ble.requestBluetoothPermissions();
+        this.ble.requestBluetoothPermissions(this);
 
         if (this.ble.hasBluetoothPermissions()) {
             this.ble.stop();
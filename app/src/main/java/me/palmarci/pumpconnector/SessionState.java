@@ -0,0 +1,134 @@
+package me.palmarci.pumpconnector;
+
+/**
+ * Per-device session state that survives process death, persisted by {@link SessionStore}.
+ *
+ * Only the CCC value of bonded centrals and the MTU are kept up to date by the GATT server. The SAKE and history
+ * fields are storage for the handshake and history download, which set and read them.
+ *
+ * Every setter marks the state dirty so the store re-encodes only the records that changed.
+ * A blank state from {@link SessionStore#get} is stored by the first setter that changes it.
+ */
+public class SessionState {
+    static final int MAX_KEY_LENGTH = 255;
+
+    private final String address;
+    private final SessionStore store;
+
+    private byte[] sakeKey = new byte[0];
+    private long txCounter;
+    private long rxCounter;
+    private int cccValue;
+    private int mtu = SlidingWindowSender.DEFAULT_MTU;
+    private long historyPosition;
+
+    // Encoded record, dropped whenever a field changes
+    byte[] encoded;
+
+    SessionState(String address, SessionStore store) {
+        this.address = address;
+        this.store = store;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public synchronized byte[] getSakeKey() {
+        return sakeKey.clone();
+    }
+
+    public synchronized boolean hasSakeKey() {
+        return sakeKey.length > 0;
+    }
+
+    public synchronized long getTxCounter() {
+        return txCounter;
+    }
+
+    public synchronized long getRxCounter() {
+        return rxCounter;
+    }
+
+    public synchronized int getCccValue() {
+        return cccValue;
+    }
+
+    public synchronized int getMtu() {
+        return mtu;
+    }
+
+    public synchronized long getHistoryPosition() {
+        return historyPosition;
+    }
+
+    // Records the SAKE session key together with its message counters, for the handshake to reuse
+    public void setSakeSession(byte[] key, long txCounter, long rxCounter) {
+        if (key == null || key.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Invalid SAKE key");
+        }
+        synchronized (this) {
+            this.sakeKey = key.clone();
+            this.txCounter = txCounter;
+            this.rxCounter = rxCounter;
+            encoded = null;
+        }
+        store.onChanged(this);
+    }
+
+    public void setCounters(long txCounter, long rxCounter) {
+        synchronized (this) {
+            if (this.txCounter == txCounter && this.rxCounter == rxCounter) {
+                return;
+            }
+            this.txCounter = txCounter;
+            this.rxCounter = rxCounter;
+            encoded = null;
+        }
+        store.onChanged(this);
+    }
+
+    public void setCccValue(int cccValue) {
+        synchronized (this) {
+            if (this.cccValue == cccValue) {
+                return;
+            }
+            this.cccValue = cccValue;
+            encoded = null;
+        }
+        store.onChanged(this);
+    }
+
+    public void setMtu(int mtu) {
+        synchronized (this) {
+            if (this.mtu == mtu) {
+                return;
+            }
+            this.mtu = mtu;
+            encoded = null;
+        }
+        store.onChanged(this);
+    }
+
+    // Last history entry the central has confirmed, for the history download to continue from
+    public void confirmHistoryPosition(long historyPosition) {
+        synchronized (this) {
+            if (this.historyPosition == historyPosition) {
+                return;
+            }
+            this.historyPosition = historyPosition;
+            encoded = null;
+        }
+        store.onChanged(this);
+    }
+
+    // Restores fields from a snapshot without marking the state dirty
+    synchronized void restore(byte[] sakeKey, long txCounter, long rxCounter, int cccValue, int mtu, long historyPosition) {
+        this.sakeKey = sakeKey;
+        this.txCounter = txCounter;
+        this.rxCounter = rxCounter;
+        this.cccValue = cccValue;
+        this.mtu = mtu;
+        this.historyPosition = historyPosition;
+    }
+}
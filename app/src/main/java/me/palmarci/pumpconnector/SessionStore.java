@@ -0,0 +1,341 @@
+package me.palmarci.pumpconnector;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary snapshot of per-device session state that survives Android killing the process.
+ *
+ * Today only the CCC subscription of bonded centrals and the MTU are written by the GATT server.
+ * A restored subscription lets a reconnecting pump receive notifications without writing its CCC
+ * descriptor again. The SAKE key, its counters and the history position are stored for whoever
+ * sets them, nothing restores a SAKE session or resumes a transfer from them yet, and a reliable
+ * transfer in progress is dropped on disconnect.
+ *
+ * The snapshot is loaded lazily on first access. Saving re-encodes only the records that
+ * changed and replaces the whole file through {@link AtomicFile}, so a crash mid-write
+ * always leaves the previous snapshot intact. SAKE keys are only written wrapped by a
+ * {@link KeyProtector}, bound to the device address.
+ *
+ * File layout (little endian):
+ *   magic (4) | record count (varint) | records | CRC32 of everything before it (4)
+ *   record: address (6) | CCC (2) | MTU (2) | tx counter (varint) | rx counter (varint)
+ *           | history position (varint) | wrapped key length (varint) | wrapped key
+ */
+public class SessionStore {
+    private static final String TAG = "SessionStore";
+
+    static final String FILE_NAME = "sessions.bin";
+    static final int MAX_SESSIONS = 16;
+    // "PCS" + format version
+    private static final int MAGIC = 0x50435303;
+    private static final int ADDRESS_LENGTH = 6;
+
+    /**
+     * Encrypts SAKE keys at rest. The associated data binds a wrapped key to its device.
+     */
+    public interface KeyProtector {
+        byte[] wrap(byte[] key, byte[] associatedData) throws GeneralSecurityException;
+
+        byte[] unwrap(byte[] wrappedKey, byte[] associatedData) throws GeneralSecurityException;
+    }
+
+    private final AtomicFile file;
+    private final KeyProtector keyProtector;
+    private final Runnable scheduleSave;
+
+    // Access ordered, eviction walks it from the least recently used device
+    private final LinkedHashMap<String, SessionState> sessions = new LinkedHashMap<>(MAX_SESSIONS + 1, 0.75f, true);
+
+    private boolean loaded;
+    private boolean dirty;
+
+    /**
+     * @param directory    where the snapshot lives, or null to keep sessions in memory only
+     * @param keyProtector wraps SAKE keys before they are written, unused without a directory
+     * @param scheduleSave invoked after every change, expected to call {@link #save()} soon
+     */
+    public SessionStore(File directory, KeyProtector keyProtector, Runnable scheduleSave) {
+        this.file = directory != null ? new AtomicFile(new File(directory, FILE_NAME)) : null;
+        this.keyProtector = keyProtector;
+        this.scheduleSave = scheduleSave;
+    }
+
+    // Stored state of a device, or null if it has none. Never creates a record.
+    public synchronized SessionState peek(String address) {
+        ensureLoaded();
+        return sessions.get(address);
+    }
+
+    // Stored state of a device, or a blank one that is only stored once a setter changes it
+    public synchronized SessionState get(String address) {
+        SessionState state = peek(address);
+        if (state == null) {
+            parseAddress(address);
+            state = new SessionState(address, this);
+        }
+        return state;
+    }
+
+    public synchronized void save() {
+        if (!dirty || file == null) {
+            return;
+        }
+
+        byte[] snapshot = encode();
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            out.write(snapshot);
+            // Syncs the data before the new file replaces the old one
+            file.finishWrite(out);
+            dirty = false;
+            Log.d(TAG, "Saved " + sessions.size() + " sessions, " + snapshot.length + " bytes");
+        } catch (IOException e) {
+            if (out != null) {
+                file.failWrite(out);
+            }
+            Log.e(TAG, "Failed to save session snapshot: " + e.getMessage());
+        }
+    }
+
+    void onChanged(SessionState state) {
+        synchronized (this) {
+            if (sessions.get(state.getAddress()) != state) {
+                sessions.put(state.getAddress(), state);
+                evictIfFull();
+            }
+            dirty = true;
+        }
+        scheduleSave.run();
+    }
+
+    // Devices without a SAKE key go first, so passing centrals never push out a pump's session
+    private void evictIfFull() {
+        if (sessions.size() <= MAX_SESSIONS) {
+            return;
+        }
+        SessionState victim = null;
+        for (SessionState state : sessions.values()) {
+            if (victim == null) {
+                victim = state;
+            }
+            if (!state.hasSakeKey()) {
+                victim = state;
+                break;
+            }
+        }
+        sessions.remove(victim.getAddress());
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        if (file == null) {
+            return;
+        }
+
+        try {
+            // Also rolls back a write that never finished
+            decode(file.readFully());
+            Log.i(TAG, "Restored " + sessions.size() + " sessions");
+        } catch (FileNotFoundException e) {
+            // First start
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Discarding session snapshot: " + e.getMessage());
+            sessions.clear();
+        }
+    }
+
+    private byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeInt(out, MAGIC);
+        writeVarint(out, sessions.size());
+        for (SessionState state : sessions.values()) {
+            byte[] record = encodeRecord(state);
+            out.write(record, 0, record.length);
+        }
+
+        CRC32 crc = new CRC32();
+        byte[] body = out.toByteArray();
+        crc.update(body, 0, body.length);
+        writeInt(out, (int) crc.getValue());
+        return out.toByteArray();
+    }
+
+    // Unchanged records reuse their cached encoding, so a key is wrapped once per change
+    private byte[] encodeRecord(SessionState state) {
+        synchronized (state) {
+            if (state.encoded != null) {
+                return state.encoded;
+            }
+
+            byte[] address = parseAddress(state.getAddress());
+            byte[] wrappedKey = wrapKey(state.getSakeKey(), address);
+            int cccValue = state.getCccValue();
+            int mtu = state.getMtu();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(ADDRESS_LENGTH + 64);
+            out.write(address, 0, ADDRESS_LENGTH);
+            out.write(cccValue);
+            out.write(cccValue >> 8);
+            out.write(mtu);
+            out.write(mtu >> 8);
+            writeVarint(out, state.getTxCounter());
+            writeVarint(out, state.getRxCounter());
+            writeVarint(out, state.getHistoryPosition());
+            if (wrappedKey != null) {
+                writeVarint(out, wrappedKey.length);
+                out.write(wrappedKey, 0, wrappedKey.length);
+            } else {
+                writeVarint(out, 0);
+            }
+
+            // Not cached without the key, the next save tries to wrap it again
+            byte[] record = out.toByteArray();
+            if (wrappedKey != null) {
+                state.encoded = record;
+            }
+            return record;
+        }
+    }
+
+    // Returns null if the key cannot be wrapped, it is never written in plain text
+    private byte[] wrapKey(byte[] key, byte[] address) {
+        if (key.length == 0) {
+            return key;
+        }
+        try {
+            return keyProtector.wrap(key, address);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Not saving SAKE key of " + formatAddress(address) + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // A key that cannot be unwrapped, e.g. after the keystore was reset, is dropped with the rest kept
+    private byte[] unwrapKey(byte[] wrappedKey, byte[] address) {
+        if (wrappedKey.length == 0) {
+            return wrappedKey;
+        }
+        try {
+            byte[] key = keyProtector.unwrap(wrappedKey, address);
+            if (key.length <= SessionState.MAX_KEY_LENGTH) {
+                return key;
+            }
+            Log.w(TAG, "Dropping oversized SAKE key of " + formatAddress(address));
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Dropping SAKE key of " + formatAddress(address) + ": " + e.getMessage());
+        }
+        return new byte[0];
+    }
+
+    private void decode(byte[] data) throws IOException {
+        if (data.length < 8) {
+            throw new IOException("Snapshot truncated");
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(data.length - 4) != (int) crc.getValue()) {
+            throw new IOException("Checksum mismatch");
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Unknown snapshot format");
+        }
+
+        buffer.limit(data.length - 4);
+        long count = readVarint(buffer);
+        for (long i = 0; i < count; i++) {
+            byte[] address = new byte[ADDRESS_LENGTH];
+            buffer.get(address);
+            int cccValue = buffer.getShort() & 0xFFFF;
+            int mtu = buffer.getShort() & 0xFFFF;
+            long txCounter = readVarint(buffer);
+            long rxCounter = readVarint(buffer);
+            long historyPosition = readVarint(buffer);
+            long wrappedKeyLength = readVarint(buffer);
+            if (wrappedKeyLength > buffer.remaining()) {
+                throw new IOException("Record truncated");
+            }
+            byte[] wrappedKey = new byte[(int) wrappedKeyLength];
+            buffer.get(wrappedKey);
+
+            SessionState state = new SessionState(formatAddress(address), this);
+            state.restore(unwrapKey(wrappedKey, address), txCounter, rxCounter, cccValue, mtu, historyPosition);
+            sessions.put(state.getAddress(), state);
+        }
+    }
+
+    // "00:11:22:33:44:55" to six bytes
+    static byte[] parseAddress(String address) {
+        if (address == null || address.length() != ADDRESS_LENGTH * 3 - 1) {
+            throw new IllegalArgumentException("Invalid device address: " + address);
+        }
+        byte[] bytes = new byte[ADDRESS_LENGTH];
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            int high = Character.digit(address.charAt(i * 3), 16);
+            int low = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (high < 0 || low < 0 || (i < ADDRESS_LENGTH - 1 && address.charAt(i * 3 + 2) != ':')) {
+                throw new IllegalArgumentException("Invalid device address: " + address);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    static String formatAddress(byte[] bytes) {
+        StringBuilder address = new StringBuilder(ADDRESS_LENGTH * 3 - 1);
+        for (int i = 0; i < bytes.length; i++) {
+            if (i > 0) {
+                address.append(':');
+            }
+            address.append(Character.toUpperCase(Character.forDigit((bytes[i] >> 4) & 0x0F, 16)));
+            address.append(Character.toUpperCase(Character.forDigit(bytes[i] & 0x0F, 16)));
+        }
+        return address.toString();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >> 8);
+        out.write(value >> 16);
+        out.write(value >> 24);
+    }
+
+    // Unsigned LEB128, counters stay small for most of a session's life
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
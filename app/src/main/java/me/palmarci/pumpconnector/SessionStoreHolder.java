@@ -0,0 +1,120 @@
+package me.palmarci.pumpconnector;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Process wide owner of a session snapshot: one {@link SessionStore} and one save thread per
+ * directory, shared by every {@link BlePeripheralDevice}. With a single writer per file a delayed
+ * save of an old instance can never overwrite a newer snapshot.
+ *
+ * Reference counted, the last {@link #release()} writes pending changes before the next
+ * {@link #acquire} can open the file again, then quits the thread.
+ */
+final class SessionStoreHolder {
+    // Coalesces bursts of changes into one write
+    private static final long SAVE_DELAY_MS = 200;
+
+    private static final Map<File, SessionStoreHolder> HOLDERS = new HashMap<>();
+
+    private final File directory;
+    // Null when the caller supplies the scheduler
+    private final HandlerThread thread;
+    private final GattRequestHandler.Scheduler scheduler;
+    private final SessionStore store;
+    private final AtomicBoolean savePending = new AtomicBoolean();
+    private int users;
+
+    private final Runnable saveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            savePending.set(false);
+            store.save();
+        }
+    };
+
+    private SessionStoreHolder(File directory, SessionStore.KeyProtector keyProtector,
+                               GattRequestHandler.Scheduler scheduler, HandlerThread thread) {
+        this.directory = directory;
+        this.thread = thread;
+        this.scheduler = scheduler;
+        // Not read until the first device connects
+        store = new SessionStore(directory, keyProtector, this::scheduleSave);
+    }
+
+    // Saves run on the given scheduler, e.g. on virtual time in tests. Not shared through acquire().
+    SessionStoreHolder(File directory, SessionStore.KeyProtector keyProtector, GattRequestHandler.Scheduler scheduler) {
+        this(directory, keyProtector, scheduler, null);
+        users = 1;
+    }
+
+    private static SessionStoreHolder create(File directory) {
+        HandlerThread thread = new HandlerThread("SessionStore");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+        GattRequestHandler.Scheduler scheduler = new GattRequestHandler.Scheduler() {
+            @Override
+            public void postDelayed(Runnable task, long delayMs) {
+                handler.postDelayed(task, delayMs);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                handler.removeCallbacks(task);
+            }
+        };
+        return new SessionStoreHolder(directory, new KeystoreKeyProtector(), scheduler, thread);
+    }
+
+    static SessionStoreHolder acquire(File directory) {
+        synchronized (HOLDERS) {
+            SessionStoreHolder holder = HOLDERS.get(directory);
+            if (holder == null) {
+                holder = create(directory);
+                HOLDERS.put(directory, holder);
+            }
+            holder.users++;
+            return holder;
+        }
+    }
+
+    SessionStore getStore() {
+        return store;
+    }
+
+    // Writes pending changes without waiting for the save delay
+    void saveNow() {
+        scheduler.cancel(saveRunnable);
+        scheduler.postDelayed(saveRunnable, 0);
+    }
+
+    // The holder must not be used after its last release
+    void release() {
+        synchronized (HOLDERS) {
+            if (--users > 0) {
+                return;
+            }
+            // Written on the calling thread, a store acquired right after reads this snapshot
+            scheduler.cancel(saveRunnable);
+            savePending.set(false);
+            store.save();
+            if (HOLDERS.get(directory) == this) {
+                HOLDERS.remove(directory);
+            }
+        }
+        if (thread != null) {
+            thread.quitSafely();
+        }
+    }
+
+    private void scheduleSave() {
+        if (savePending.compareAndSet(false, true)) {
+            scheduler.postDelayed(saveRunnable, SAVE_DELAY_MS);
+        }
+    }
+}
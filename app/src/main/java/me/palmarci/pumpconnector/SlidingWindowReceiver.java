@@ -0,0 +1,98 @@
+package me.palmarci.pumpconnector;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Central side of the sliding-window protocol described in {@link SlidingWindowSender}.
+ *
+ * Buffers out-of-order DATA frames, reassembles messages in sequence order and produces
+ * the ACK frame to write back after every received frame.
+ */
+public class SlidingWindowReceiver {
+
+    public interface Listener {
+        void onMessage(byte[] message);
+    }
+
+    private final Listener listener;
+    private final byte[][] buffered = new byte[SlidingWindowSender.RING_SIZE][];
+    private final ByteArrayOutputStream assembly = new ByteArrayOutputStream();
+    private int nextExpected;
+
+    public SlidingWindowReceiver(Listener listener) {
+        this.listener = listener;
+    }
+
+    public static boolean isDataFrame(byte[] value) {
+        return value != null && value.length > SlidingWindowSender.DATA_HEADER_SIZE
+                && value[0] == SlidingWindowSender.FRAME_DATA;
+    }
+
+    /**
+     * Consumes a DATA frame received as a notification.
+     *
+     * @return the ACK frame to write back, or null if the value is not a DATA frame
+     */
+    public synchronized byte[] onFrame(byte[] value) {
+        if (!isDataFrame(value)) {
+            return null;
+        }
+
+        int seq = SlidingWindowSender.readUint16(value, 1);
+        int distance = SlidingWindowSender.seqDiff(seq, nextExpected);
+
+        // Duplicates are simply re-acknowledged, frames beyond the window are dropped
+        if (distance >= 0 && distance <= SlidingWindowSender.MAX_WINDOW) {
+            buffered[seq & (SlidingWindowSender.RING_SIZE - 1)] = value;
+            deliverInOrder();
+        }
+
+        return createAck();
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < buffered.length; i++) {
+            buffered[i] = null;
+        }
+        assembly.reset();
+        nextExpected = 0;
+    }
+
+    private void deliverInOrder() {
+        int slot = nextExpected & (SlidingWindowSender.RING_SIZE - 1);
+        while (buffered[slot] != null) {
+            byte[] frame = buffered[slot];
+            buffered[slot] = null;
+
+            int header = SlidingWindowSender.DATA_HEADER_SIZE;
+            assembly.write(frame, header, frame.length - header);
+            if ((frame[3] & SlidingWindowSender.FLAG_END_OF_MESSAGE) != 0) {
+                byte[] message = assembly.toByteArray();
+                assembly.reset();
+                listener.onMessage(message);
+            }
+
+            nextExpected = (nextExpected + 1) & 0xFFFF;
+            slot = nextExpected & (SlidingWindowSender.RING_SIZE - 1);
+        }
+    }
+
+    private byte[] createAck() {
+        long sackBitmap = 0;
+        for (int i = 0; i < SlidingWindowSender.MAX_WINDOW; i++) {
+            if (buffered[(nextExpected + 1 + i) & (SlidingWindowSender.RING_SIZE - 1)] != null) {
+                sackBitmap |= 1L << i;
+            }
+        }
+
+        return new byte[]{
+                SlidingWindowSender.FRAME_ACK,
+                (byte) nextExpected,
+                (byte) (nextExpected >> 8),
+                (byte) sackBitmap,
+                (byte) (sackBitmap >> 8),
+                (byte) (sackBitmap >> 16),
+                (byte) (sackBitmap >> 24)
+        };
+    }
+}
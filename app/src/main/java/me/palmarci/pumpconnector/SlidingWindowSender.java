@@ -0,0 +1,434 @@
+package me.palmarci.pumpconnector;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.function.LongSupplier;
+
+/**
+ * Sliding-window reliable delivery on top of SAKE notifications.
+ *
+ * Notifications are not acknowledged at the ATT layer, so every data frame carries a 16-bit
+ * sequence number and the central confirms them by writing ACK frames back to the SAKE
+ * characteristic. An ACK holds the next expected sequence number (cumulative) plus a 32-bit
+ * bitmap of frames received beyond it (selective), so only the real gaps are retransmitted.
+ * The window grows additively on clean ACKs, shrinks slightly on selectively detected loss
+ * and is halved when the retransmission timer fires.
+ *
+ * Frame layout (little endian):
+ *   DATA: 0x5D | seq (2) | flags (1) | payload
+ *   ACK:  0x5A | next expected seq (2) | SACK bitmap (4), bit i = seq + 1 + i received
+ *
+ * Android allows a single outstanding notification, so the owner must call
+ * {@link #onFrameSent()} from onNotificationSent and {@link #poll()} periodically
+ * to drive retransmission timers.
+ */
+public class SlidingWindowSender {
+    static final byte FRAME_DATA = 0x5D;
+    static final byte FRAME_ACK = 0x5A;
+    static final int DATA_HEADER_SIZE = 4;
+    static final int ACK_SIZE = 7;
+    static final int FLAG_END_OF_MESSAGE = 0x01;
+
+    // ATT opcode + attribute handle in front of every notification
+    static final int ATT_NOTIFICATION_OVERHEAD = 3;
+    static final int DEFAULT_MTU = 23;
+
+    // Limited by the width of the SACK bitmap
+    static final int MAX_WINDOW = 32;
+    static final int RING_SIZE = 64;
+    private static final int MIN_WINDOW = 1;
+    private static final int INITIAL_WINDOW = 4;
+    private static final int DUP_ACK_THRESHOLD = 3;
+
+    // Isolated drops are mostly radio noise, only a stalled link shrinks the window hard
+    private static final double SACK_LOSS_FACTOR = 0.875;
+    private static final double TIMEOUT_LOSS_FACTOR = 0.5;
+
+    private static final long INITIAL_RTO_MS = 500;
+    private static final long MIN_RTO_MS = 100;
+    private static final long MAX_RTO_MS = 4000;
+
+    public interface Link {
+        /**
+         * Hands one frame to the radio. Returns false if it could not be queued,
+         * in which case it is retried on the next {@link #poll()}.
+         */
+        boolean send(byte[] frame);
+    }
+
+    private static final class Frame {
+        final int seq;
+        final byte[] bytes;
+        long sentAt;
+        // Position among all transmissions, several frames go out within one clock tick
+        long sentOrder;
+        int transmissions;
+        int dupAcks;
+        boolean sacked;
+        boolean queued;
+
+        Frame(int seq, byte[] bytes) {
+            this.seq = seq;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Link link;
+    private final LongSupplier clock;
+
+    private final Frame[] inFlight = new Frame[RING_SIZE];
+    private final Queue<byte[]> pendingMessages = new ArrayDeque<>();
+    private final Queue<Frame> retransmitQueue = new ArrayDeque<>();
+    private int pendingOffset;
+    private Frame refusedFrame;
+
+    private int sendBase;
+    private int nextSeq;
+    private int recoverSeq;
+    private boolean inRecovery;
+    private boolean linkBusy;
+
+    private double window = INITIAL_WINDOW;
+    private double slowStartThreshold = MAX_WINDOW;
+    private int maxWindow = MAX_WINDOW;
+    private int mtu = DEFAULT_MTU;
+
+    private long smoothedRtt = -1;
+    private long rttVariance;
+    private long rto = INITIAL_RTO_MS;
+    private int backoff;
+
+    private long framesSent;
+    private long retransmissions;
+
+    public SlidingWindowSender(Link link, LongSupplier clock) {
+        this.link = link;
+        this.clock = clock;
+    }
+
+    // Queues a message for delivery; it is split into frames that fit the current MTU
+    public synchronized void offer(byte[] message) {
+        if (message == null || message.length == 0) {
+            throw new IllegalArgumentException("Message must not be empty");
+        }
+        pendingMessages.add(message.clone());
+        pump();
+    }
+
+    public synchronized void setMtu(int mtu) {
+        this.mtu = Math.max(DEFAULT_MTU, mtu);
+    }
+
+    // Caps the window, e.g. 1 to fall back to stop-and-wait
+    public synchronized void setMaxWindow(int maxWindow) {
+        this.maxWindow = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, maxWindow));
+        window = Math.min(window, this.maxWindow);
+    }
+
+    public static boolean isAckFrame(byte[] value) {
+        return value != null && value.length == ACK_SIZE && value[0] == FRAME_ACK;
+    }
+
+    /**
+     * Processes an ACK written by the central.
+     *
+     * @return false if the value is not an ACK frame and should be handled as a regular write
+     */
+    public synchronized boolean onAck(byte[] value) {
+        if (!isAckFrame(value)) {
+            return false;
+        }
+
+        int cumulative = readUint16(value, 1);
+        long sackBitmap = readUint32(value, 3);
+
+        // Ignore stale ACKs and ones acknowledging frames we never sent
+        if (seqDiff(cumulative, sendBase) < 0 || seqDiff(cumulative, nextSeq) > 0) {
+            return true;
+        }
+
+        long now = clock.getAsLong();
+        if (sendBase != cumulative) {
+            backoff = 0;
+        }
+        while (sendBase != cumulative) {
+            Frame frame = inFlight[slot(sendBase)];
+            inFlight[slot(sendBase)] = null;
+            if (frame != null && frame.transmissions > 0) {
+                if (!frame.sacked) {
+                    sampleRtt(frame, now);
+                }
+                growWindow();
+            }
+            sendBase = nextSeq(sendBase);
+        }
+        // Everything sent before the last window reduction is acknowledged
+        if (inRecovery && seqDiff(sendBase, recoverSeq) >= 0) {
+            inRecovery = false;
+        }
+
+        // Mark selectively acknowledged frames and remember the newest one sent
+        Frame newestSacked = null;
+        int sackSpan = 0;
+        for (int i = 0; i < MAX_WINDOW; i++) {
+            if ((sackBitmap & (1L << i)) == 0) {
+                continue;
+            }
+            int seq = (cumulative + 1 + i) & 0xFFFF;
+            if (seqDiff(seq, nextSeq) >= 0) {
+                break;
+            }
+            Frame frame = inFlight[slot(seq)];
+            if (frame != null) {
+                if (!frame.sacked) {
+                    sampleRtt(frame, now);
+                }
+                frame.sacked = true;
+                sackSpan = i + 1;
+                if (newestSacked == null || frame.sentOrder > newestSacked.sentOrder) {
+                    newestSacked = frame;
+                }
+            }
+        }
+
+        // A hole that later frames have overtaken is counted as a duplicate ACK
+        if (newestSacked != null) {
+            for (int i = 0; i < sackSpan; i++) {
+                Frame frame = inFlight[slot(cumulative + i)];
+                if (frame == null || frame.sacked || frame.queued || frame.transmissions == 0
+                        || frame.sentOrder >= newestSacked.sentOrder) {
+                    continue;
+                }
+                if (++frame.dupAcks >= DUP_ACK_THRESHOLD) {
+                    frame.dupAcks = 0;
+                    onLoss(frame.seq, SACK_LOSS_FACTOR);
+                    queueRetransmit(frame);
+                }
+            }
+        }
+
+        pump();
+        return true;
+    }
+
+    // Called once the stack has taken the previous notification (onNotificationSent)
+    public synchronized void onFrameSent() {
+        linkBusy = false;
+        pump();
+    }
+
+    // Fires retransmission timers and retries frames the radio refused earlier
+    public synchronized void poll() {
+        long now = clock.getAsLong();
+        long timeout = currentRto();
+        boolean timedOut = false;
+        boolean retransmissionLost = false;
+
+        for (int seq = sendBase; seq != nextSeq; seq = nextSeq(seq)) {
+            Frame frame = inFlight[slot(seq)];
+            if (frame == null || frame.sacked || frame.queued || frame.transmissions == 0) {
+                continue;
+            }
+            if (now - frame.sentAt >= timeout) {
+                retransmissionLost |= frame.transmissions > 1;
+                queueRetransmit(frame);
+                timedOut = true;
+            }
+        }
+
+        if (timedOut) {
+            enterRecovery(TIMEOUT_LOSS_FACTOR);
+            // Back off only while retransmissions keep getting lost, progress resets it
+            if (retransmissionLost && currentRto() < MAX_RTO_MS) {
+                backoff++;
+            }
+            // The radio may have dropped the notification without ever reporting it
+            linkBusy = false;
+        }
+
+        pump();
+    }
+
+    public synchronized boolean isIdle() {
+        return pendingMessages.isEmpty() && sendBase == nextSeq;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(inFlight, null);
+        pendingMessages.clear();
+        retransmitQueue.clear();
+        pendingOffset = 0;
+        refusedFrame = null;
+        mtu = DEFAULT_MTU;
+        sendBase = 0;
+        nextSeq = 0;
+        recoverSeq = 0;
+        inRecovery = false;
+        linkBusy = false;
+        window = Math.min(INITIAL_WINDOW, maxWindow);
+        slowStartThreshold = MAX_WINDOW;
+        smoothedRtt = -1;
+        rttVariance = 0;
+        rto = INITIAL_RTO_MS;
+        backoff = 0;
+    }
+
+    public synchronized int getWindow() {
+        return (int) window;
+    }
+
+    public synchronized long getRetransmissionTimeout() {
+        return currentRto();
+    }
+
+    public synchronized long getFramesSent() {
+        return framesSent;
+    }
+
+    public synchronized long getRetransmissions() {
+        return retransmissions;
+    }
+
+    private void pump() {
+        while (!linkBusy) {
+            Frame frame = retransmitQueue.peek();
+            boolean isRetransmit = frame != null;
+            if (isRetransmit && (frame.sacked || inFlight[slot(frame.seq)] != frame)) {
+                // Acknowledged while waiting in the queue
+                retransmitQueue.poll();
+                frame.queued = false;
+                continue;
+            }
+            if (!isRetransmit) {
+                frame = refusedFrame != null ? refusedFrame : nextNewFrame();
+                if (frame == null) {
+                    return;
+                }
+            }
+
+            if (!link.send(frame.bytes)) {
+                // Radio queue is full, try the same frame again on the next poll
+                if (!isRetransmit) {
+                    refusedFrame = frame;
+                }
+                return;
+            }
+
+            if (isRetransmit) {
+                retransmitQueue.poll();
+                frame.queued = false;
+                retransmissions++;
+            } else {
+                refusedFrame = null;
+            }
+            frame.sentAt = clock.getAsLong();
+            frame.sentOrder = framesSent;
+            frame.transmissions++;
+            framesSent++;
+            linkBusy = true;
+        }
+    }
+
+    private Frame nextNewFrame() {
+        if (pendingMessages.isEmpty() || seqDiff(nextSeq, sendBase) >= (int) window) {
+            return null;
+        }
+
+        byte[] message = pendingMessages.peek();
+        int payloadSize = Math.max(1, mtu - ATT_NOTIFICATION_OVERHEAD - DATA_HEADER_SIZE);
+        int length = Math.min(payloadSize, message.length - pendingOffset);
+        boolean last = pendingOffset + length == message.length;
+
+        byte[] bytes = new byte[DATA_HEADER_SIZE + length];
+        bytes[0] = FRAME_DATA;
+        bytes[1] = (byte) nextSeq;
+        bytes[2] = (byte) (nextSeq >> 8);
+        bytes[3] = (byte) (last ? FLAG_END_OF_MESSAGE : 0);
+        System.arraycopy(message, pendingOffset, bytes, DATA_HEADER_SIZE, length);
+
+        if (last) {
+            pendingMessages.poll();
+            pendingOffset = 0;
+        } else {
+            pendingOffset += length;
+        }
+
+        Frame frame = new Frame(nextSeq, bytes);
+        inFlight[slot(nextSeq)] = frame;
+        nextSeq = nextSeq(nextSeq);
+        return frame;
+    }
+
+    private void queueRetransmit(Frame frame) {
+        frame.queued = true;
+        retransmitQueue.add(frame);
+    }
+
+    private void growWindow() {
+        if (window < slowStartThreshold) {
+            window += 1;
+        } else {
+            window += 1 / window;
+        }
+        window = Math.min(window, maxWindow);
+    }
+
+    // Shrinks the window at most once per window of data; recoverSeq is only compared while
+    // in recovery, when it is never more than a window ahead of sendBase
+    private void onLoss(int seq, double factor) {
+        if (inRecovery && seqDiff(seq, recoverSeq) < 0) {
+            return;
+        }
+        enterRecovery(factor);
+    }
+
+    // A timeout means the link stalled, so it shrinks the window even during recovery and starts it over
+    private void enterRecovery(double factor) {
+        inRecovery = true;
+        slowStartThreshold = Math.max(MIN_WINDOW, window * factor);
+        window = slowStartThreshold;
+        recoverSeq = nextSeq;
+    }
+
+    // Karn's rule: retransmitted frames give ambiguous samples and are skipped
+    private void sampleRtt(Frame frame, long now) {
+        if (frame.transmissions != 1) {
+            return;
+        }
+        long rtt = now - frame.sentAt;
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+        }
+        rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, smoothedRtt + Math.max(1, 4 * rttVariance)));
+    }
+
+    private long currentRto() {
+        return Math.min(MAX_RTO_MS, rto << backoff);
+    }
+
+    private static int slot(int seq) {
+        return seq & (RING_SIZE - 1);
+    }
+
+    private static int nextSeq(int seq) {
+        return (seq + 1) & 0xFFFF;
+    }
+
+    // Signed distance between two 16-bit sequence numbers
+    static int seqDiff(int a, int b) {
+        return (short) (a - b);
+    }
+
+    static int readUint16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+    static long readUint32(byte[] data, int offset) {
+        return (readUint16(data, offset) & 0xFFFFL) | ((long) readUint16(data, offset + 2) << 16);
+    }
+}
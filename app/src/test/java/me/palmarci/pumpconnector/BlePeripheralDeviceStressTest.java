@@ -0,0 +1,560 @@
+package me.palmarci.pumpconnector;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Soak test driving the GATT request handling behind {@link BlePeripheralDevice} with randomized pump
+ * traffic: connect/disconnect churn, MTU changes, interleaved prepared writes, lossy notification bursts
+ * and the poll/retransmission timer running on virtual time. Now and then a second central connects
+ * during a transfer and writes stray ACKs and MTU changes that must not disturb it. Bonded centrals keep
+ * their subscription across connections, the others subscribe again every time.
+ *
+ * The radio, scheduler and clock are hand-written fakes that do not allocate, so the allocation budget
+ * measures the handler, the sliding-window sender and the session store, including the snapshot writes
+ * of {@link SessionStoreHolder} to a temporary directory. Saves run on virtual time like the rest, but
+ * outside the latency measurement since the app runs them on a thread of their own.
+ *
+ * Excluded from the unit tests, the budgets are enforced by ./gradlew soakTest, which check depends on.
+ * For a long soak pass the number of events and optionally another seed, e.g.
+ * ./gradlew soakTest -PsoakEvents=2000000000 -PsoakSeed=7
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BlePeripheralDeviceStressTest {
+
+    // Budgets, a change that exceeds them fails the build. A default run on a desktop JVM measures
+    // p99 ~1.5 us, ~22 bytes/event with the snapshot writes and under 50 kB retained, the budgets
+    // leave 10x or more of headroom for slow CI machines and JIT noise.
+    private static final long P99_LATENCY_BUDGET_NANOS = 50_000;
+    private static final long ALLOCATION_BUDGET_BYTES_PER_EVENT = 256;
+    private static final long RETAINED_HEAP_BUDGET_BYTES = 1024 * 1024;
+
+    private static final long EVENTS = Long.getLong("soakEvents", 1_000_000);
+    private static final long WARMUP_EVENTS = 100_000;
+    private static final long SEED = Long.getLong("soakSeed", 20240601);
+
+    private static final int DEVICE_COUNT = 4;
+    // The first devices are bonded
+    private static final int BONDED_DEVICES = 2;
+    private static final int PAYLOAD_POOL_SIZE = 64;
+    private static final int MAX_PREPARED_CHUNKS = 8;
+    private static final double NOTIFICATION_LOSS_RATE = 0.1;
+    private static final int MAX_EVENT_GAP_MS = 4;
+    private static final long DRAIN_LIMIT_MS = 60_000;
+
+    private static final int[] MTUS = {23, 27, 64, 185, 247, 512, 517};
+    // The last one is too short and must be rejected
+    private static final byte[][] CCC_VALUES = {{0x00, 0x00}, {0x01, 0x00}, {0x02, 0x00}, {0x03, 0x00}, {0x01}};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final String[] devices = new String[DEVICE_COUNT];
+    // CCC value each central last wrote successfully
+    private final int[] subscriptions = new int[DEVICE_COUNT];
+    private final FakeGatt gatt = new FakeGatt();
+    private final FakeScheduler scheduler = new FakeScheduler();
+    private final FakeScheduler saveScheduler = new FakeScheduler();
+    private final FakeKeyProtector keyProtector = new FakeKeyProtector();
+    private SessionStoreHolder sessions;
+    private SessionStore store;
+    private GattRequestHandler<String> handler;
+    private SlidingWindowSender sender;
+
+    // Payloads are allocated up front so the allocation budget only measures the peripheral
+    private final byte[][] payloads = new byte[PAYLOAD_POOL_SIZE][];
+    private final byte[] ack = new byte[SlidingWindowSender.ACK_SIZE];
+    private final byte[] strayAck = new byte[SlidingWindowSender.ACK_SIZE];
+    private final byte[] sakeKey = new byte[16];
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private Random random;
+
+    // Virtual time, advanced by every event
+    private long now;
+
+    // Simulated central
+    private String connected;
+    private int connectedMtu;
+    private int nextExpected;
+    private int preparedChunks = -1;
+    private int requestId;
+    private long requestsNeedingResponse;
+    private long malformedCccWrites;
+    private long sakeCounter;
+
+    // Second central, only connected while a transfer to the first one is running
+    private String bystander;
+
+    @Before
+    public void setUp() {
+        random = new Random(SEED);
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = new byte[1 + random.nextInt(i % 8 == 0 ? 2048 : 20)];
+            random.nextBytes(payloads[i]);
+        }
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = "00:11:22:33:44:0" + i;
+        }
+
+        random.nextBytes(sakeKey);
+
+        sessions = new SessionStoreHolder(folder.getRoot(), keyProtector, saveScheduler);
+        store = sessions.getStore();
+        handler = new GattRequestHandler<>(gatt, scheduler, () -> now, store);
+        sender = handler.getSakeSender();
+    }
+
+    @Test
+    public void staysWithinBudgetsUnderRandomizedTraffic() {
+        run(WARMUP_EVENTS);
+        disconnect();
+        latencies.reset();
+
+        long heapBefore = usedHeapAfterGc();
+        long retransmissionsBefore = sender.getRetransmissions();
+        long savesBefore = saveScheduler.runs;
+        long allocatedBefore = allocatedBytes();
+
+        run(EVENTS);
+
+        long allocatedAfter = allocatedBytes();
+        long retransmissions = sender.getRetransmissions() - retransmissionsBefore;
+        long saves = saveScheduler.runs - savesBefore;
+        drain();
+        disconnect();
+        long retained = usedHeapAfterGc() - heapBefore;
+
+        long p99 = latencies.percentile(0.99);
+        long allocationPerEvent = allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore) / EVENTS;
+        String report = String.format("%d events, %d polls, %d retransmissions, %d saves: p50 %d ns, p99 %d ns, "
+                        + "max %d ns, %d bytes/event, retained %d bytes",
+                EVENTS, scheduler.runs, retransmissions, saves, latencies.percentile(0.5), p99, latencies.max,
+                allocationPerEvent, retained);
+
+        assertEquals("Every request asking for a response must get one. " + report,
+                requestsNeedingResponse, gatt.responses);
+        assertEquals("Only malformed CCC writes may be rejected. " + report, malformedCccWrites, gatt.errorResponses);
+        assertTrue("Retransmission timer never fired. " + report, retransmissions > 0);
+        assertTrue("Snapshot never saved. " + report, saves > 0 && keyProtector.wrapped > 0);
+        assertTrue("p99 handling latency exceeds budget. " + report, p99 <= P99_LATENCY_BUDGET_NANOS);
+        assertTrue("Retained heap exceeds budget. " + report, retained <= RETAINED_HEAP_BUDGET_BYTES);
+        assumeTrue("Thread allocation counters not available on this JVM", allocationPerEvent >= 0);
+        assertTrue("Allocation exceeds budget. " + report, allocationPerEvent <= ALLOCATION_BUDGET_BYTES_PER_EVENT);
+
+        // What was written is what a restarted process reads back
+        sessions.release();
+        SessionStore restored = new SessionStore(folder.getRoot(), keyProtector, () -> { });
+        for (int i = 0; i < BONDED_DEVICES; i++) {
+            SessionState expected = store.peek(devices[i]);
+            SessionState actual = restored.peek(devices[i]);
+            assertNotNull(devices[i] + " not restored", actual);
+            assertEquals(expected.getCccValue(), actual.getCccValue());
+            assertArrayEquals(expected.getSakeKey(), actual.getSakeKey());
+            assertEquals(expected.getTxCounter(), actual.getTxCounter());
+        }
+    }
+
+    @Test
+    public void keepsTransferWithTheCentralItWasStartedFor() {
+        connect(devices[0]);
+        writeCcc(CCC_VALUES[1]);
+        byte[] message = new byte[1000];
+        assertTrue(handler.sendReliable(message));
+        transmit(false);
+
+        // The other central negotiates a large MTU and acknowledges the frame the first one lost
+        handler.onConnected(devices[1]);
+        handler.onMtuChanged(devices[1], 517);
+        strayAck[0] = SlidingWindowSender.FRAME_ACK;
+        strayAck[1] = 1;
+        handler.onCharacteristicWrite(devices[1], requestId++, true, false, false, 0, strayAck);
+
+        drain();
+        int payloadSize = SlidingWindowSender.DEFAULT_MTU - SlidingWindowSender.ATT_NOTIFICATION_OVERHEAD
+                - SlidingWindowSender.DATA_HEADER_SIZE;
+        assertEquals((message.length + payloadSize - 1) / payloadSize, nextExpected);
+    }
+
+    private void run(long events) {
+        for (long i = 0; i < events; i++) {
+            long start = System.nanoTime();
+            nextEvent();
+            latencies.record(System.nanoTime() - start);
+            saveScheduler.runDue(now);
+        }
+    }
+
+    private void nextEvent() {
+        now += random.nextInt(MAX_EVENT_GAP_MS + 1);
+        scheduler.runDue(now);
+
+        if (connected == null) {
+            connect(devices[random.nextInt(devices.length)]);
+            return;
+        }
+
+        if (bystander != null && random.nextInt(8) == 0) {
+            bystanderEvent();
+            return;
+        }
+
+        // Keep a prepared write open across other traffic now and then
+        if (preparedChunks >= 0 && random.nextInt(3) == 0) {
+            if (preparedChunks < MAX_PREPARED_CHUNKS && random.nextBoolean()) {
+                preparedWrite();
+            } else {
+                requestsNeedingResponse++;
+                handler.onExecuteWrite(connected, requestId++);
+                preparedChunks = -1;
+            }
+            return;
+        }
+
+        int roll = random.nextInt(100);
+        if (roll < 2) {
+            disconnect();
+        } else if (roll < 6) {
+            int mtu = MTUS[random.nextInt(MTUS.length)];
+            connectedMtu = Math.max(connectedMtu, mtu);
+            handler.onMtuChanged(connected, mtu);
+        } else if (roll < 7) {
+            if (bystander == null && !sender.isIdle()) {
+                bystander = devices[(indexOf(connected) + 1 + random.nextInt(devices.length - 1)) % devices.length];
+                handler.onConnected(bystander);
+            }
+        } else if (roll < 16) {
+            preparedChunks = 0;
+            preparedWrite();
+        } else if (roll < 24) {
+            // The central takes one history payload at a time
+            if (sender.isIdle()) {
+                assertTrue(handler.sendReliable(payloads[random.nextInt(payloads.length)]));
+            }
+        } else if (roll < 54) {
+            transmit(random.nextDouble() >= NOTIFICATION_LOSS_RATE);
+        } else if (roll < 70) {
+            acknowledge();
+        } else if (roll < 78) {
+            write(payloads[random.nextInt(payloads.length)]);
+        } else if (roll < 80) {
+            // What the SAKE handshake records, only bonded pumps come back to a session
+            if (isBonded(connected)) {
+                sakeCounter++;
+                store.get(connected).setSakeSession(sakeKey, sakeCounter, sakeCounter);
+            }
+        } else if (roll < 90) {
+            writeCcc(CCC_VALUES[random.nextInt(CCC_VALUES.length)]);
+        } else {
+            requestsNeedingResponse++;
+            handler.onCccRead(connected, requestId++, 0);
+        }
+    }
+
+    // Traffic from the central that is not receiving the transfer
+    private void bystanderEvent() {
+        int roll = random.nextInt(4);
+        if (roll == 0) {
+            handler.onDisconnected(bystander);
+            bystander = null;
+        } else if (roll == 1) {
+            handler.onMtuChanged(bystander, 517);
+        } else {
+            // Looks like an ACK for any frame in flight
+            strayAck[0] = SlidingWindowSender.FRAME_ACK;
+            for (int i = 1; i < strayAck.length; i++) {
+                strayAck[i] = (byte) random.nextInt(256);
+            }
+            strayAck[1] = (byte) (nextExpected + random.nextInt(SlidingWindowSender.MAX_WINDOW));
+            strayAck[2] = (byte) (nextExpected >> 8);
+            handler.onCharacteristicWrite(bystander, requestId++, true, false, false, 0, strayAck);
+        }
+    }
+
+    // Runs the link loss free until the transfer in progress is fully acknowledged
+    private void drain() {
+        long deadline = now + DRAIN_LIMIT_MS;
+        if (connected != null && !isSubscribed(connected)) {
+            writeCcc(CCC_VALUES[1]);
+        }
+        while (connected != null && !sender.isIdle()) {
+            assertTrue("Transfer did not drain", now < deadline);
+            scheduler.runDue(++now);
+            transmit(true);
+            acknowledge();
+        }
+    }
+
+    private void connect(String device) {
+        connected = device;
+        connectedMtu = SlidingWindowSender.DEFAULT_MTU;
+        if (!isBonded(device)) {
+            subscriptions[indexOf(device)] = 0;
+        }
+        nextExpected = 0;
+        preparedChunks = -1;
+        gatt.inFlight = null;
+        handler.onConnected(device);
+    }
+
+    private void disconnect() {
+        if (connected != null) {
+            handler.onDisconnected(connected);
+            connected = null;
+        }
+        if (bystander != null) {
+            handler.onDisconnected(bystander);
+            bystander = null;
+        }
+    }
+
+    private int indexOf(String device) {
+        for (int i = 0; i < devices.length; i++) {
+            if (devices[i].equals(device)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void writeCcc(byte[] value) {
+        requestsNeedingResponse++;
+        if (value.length < 2) {
+            malformedCccWrites++;
+        } else {
+            subscriptions[indexOf(connected)] = SlidingWindowSender.readUint16(value, 0);
+        }
+        handler.onCccWrite(connected, requestId++, true, 0, value);
+    }
+
+    private void preparedWrite() {
+        byte[] chunk = payloads[random.nextInt(payloads.length)];
+        requestsNeedingResponse++;
+        handler.onCharacteristicWrite(connected, requestId++, true, true, true, preparedChunks * 18, chunk);
+        preparedChunks++;
+    }
+
+    // The notification handed to the radio goes out, and reaches the central unless lost on the air
+    private void transmit(boolean delivered) {
+        byte[] frame = gatt.inFlight;
+        if (frame == null) {
+            return;
+        }
+        gatt.inFlight = null;
+        // Every frame goes to the central the transfer was started for, sized for its MTU
+        assertSame(connected, gatt.inFlightDevice);
+        if (frame.length > connectedMtu - SlidingWindowSender.ATT_NOTIFICATION_OVERHEAD) {
+            fail("Frame of " + frame.length + " bytes exceeds MTU " + connectedMtu);
+        }
+        if (delivered && SlidingWindowSender.readUint16(frame, 1) == nextExpected) {
+            nextExpected = (nextExpected + 1) & 0xFFFF;
+        }
+        handler.onNotificationSent();
+    }
+
+    // Cumulative ACK only, this central drops frames received out of order
+    private void acknowledge() {
+        ack[0] = SlidingWindowSender.FRAME_ACK;
+        ack[1] = (byte) nextExpected;
+        ack[2] = (byte) (nextExpected >> 8);
+        write(ack);
+    }
+
+    private void write(byte[] value) {
+        boolean responseNeeded = random.nextBoolean();
+        if (responseNeeded) {
+            requestsNeedingResponse++;
+        }
+        handler.onCharacteristicWrite(connected, requestId++, true, false, responseNeeded, 0, value);
+    }
+
+    private boolean isSubscribed(String device) {
+        return (subscriptions[indexOf(device)] & GattRequestHandler.CCC_NOTIFICATIONS) != 0;
+    }
+
+    private static boolean isBonded(String device) {
+        return device.charAt(device.length() - 1) < '0' + BONDED_DEVICES;
+    }
+
+    private static long usedHeapAfterGc() {
+        // Robolectric keeps every log line, the app's logcat does not
+        ShadowLog.clear();
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // java.lang.management is not part of android.jar, so the HotSpot counters are looked up reflectively
+    private static long allocatedBytes() {
+        try {
+            Object threadBean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            Method allocated = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) allocated.invoke(threadBean, Thread.currentThread().getId());
+        } catch (ReflectiveOperationException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Radio with room for a single notification, like Android's GATT server.
+     */
+    private final class FakeGatt implements GattRequestHandler.Gatt<String> {
+        byte[] inFlight;
+        String inFlightDevice;
+        long responses;
+        long errorResponses;
+
+        @Override
+        public String getAddress(String device) {
+            return device;
+        }
+
+        @Override
+        public boolean isBonded(String device) {
+            return BlePeripheralDeviceStressTest.isBonded(device);
+        }
+
+        @Override
+        public boolean sendResponse(String device, int requestId, int status, int offset, byte[] value) {
+            responses++;
+            if (status != GattRequestHandler.GATT_SUCCESS) {
+                errorResponses++;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean notifySake(String device, byte[] value) {
+            if (!isSubscribed(device)) {
+                fail("Notified " + device + " without a subscription");
+            }
+            if (inFlight != null) {
+                return false;
+            }
+            inFlight = value;
+            inFlightDevice = device;
+            return true;
+        }
+    }
+
+    /**
+     * Stands in for the keystore, which Robolectric does not have. Allocates like a real cipher would.
+     */
+    private static final class FakeKeyProtector implements SessionStore.KeyProtector {
+        long wrapped;
+
+        @Override
+        public byte[] wrap(byte[] key, byte[] associatedData) {
+            wrapped++;
+            return xor(key, associatedData);
+        }
+
+        @Override
+        public byte[] unwrap(byte[] wrappedKey, byte[] associatedData) {
+            return xor(wrappedKey, associatedData);
+        }
+
+        private static byte[] xor(byte[] key, byte[] associatedData) {
+            byte[] result = new byte[key.length];
+            for (int i = 0; i < key.length; i++) {
+                result[i] = (byte) (key[i] ^ associatedData[i % associatedData.length]);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Fixed-capacity timer queue on virtual time.
+     */
+    private static final class FakeScheduler implements GattRequestHandler.Scheduler {
+        private final Runnable[] tasks = new Runnable[4];
+        private final long[] dueTimes = new long[tasks.length];
+        private long now;
+        long runs;
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            for (int i = 0; i < tasks.length; i++) {
+                if (tasks[i] == null) {
+                    tasks[i] = task;
+                    dueTimes[i] = now + delayMs;
+                    return;
+                }
+            }
+            throw new IllegalStateException("Too many pending tasks");
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            for (int i = 0; i < tasks.length; i++) {
+                if (tasks[i] == task) {
+                    tasks[i] = null;
+                }
+            }
+        }
+
+        void runDue(long time) {
+            now = time;
+            for (int i = 0; i < tasks.length; i++) {
+                Runnable task = tasks[i];
+                if (task != null && dueTimes[i] <= time) {
+                    tasks[i] = null;
+                    runs++;
+                    task.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fixed-size histogram with 100 ns buckets up to 10 ms, so memory stays flat during long soaks.
+     */
+    private static final class LatencyHistogram {
+        private static final long BUCKET_NANOS = 100;
+        private final long[] buckets = new long[100_001];
+        private long count;
+        long max;
+
+        void record(long nanos) {
+            buckets[(int) Math.min(buckets.length - 1, nanos / BUCKET_NANOS)]++;
+            count++;
+            max = Math.max(max, nanos);
+        }
+
+        long percentile(double fraction) {
+            long threshold = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= threshold) {
+                    return (i + 1) * BUCKET_NANOS;
+                }
+            }
+            return max;
+        }
+
+        void reset() {
+            Arrays.fill(buckets, 0);
+            count = 0;
+            max = 0;
+        }
+    }
+}
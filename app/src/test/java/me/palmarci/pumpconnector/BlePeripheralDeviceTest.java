@@ -0,0 +1,204 @@
+package me.palmarci.pumpconnector;
+
+import android.Manifest;
+import android.app.Application;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
+import android.os.Build;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowBluetoothGattServer;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Runs a reliable SAKE transfer through the framework side of {@link BlePeripheralDevice}: the main
+ * looper drives the poll timer and the notifications go through the API level specific GATT calls.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = BlePeripheralDeviceTest.RecordingGattServer.class)
+public class BlePeripheralDeviceTest {
+    private static final UUID SAKE_CHARACTERISTIC_UUID = UUID.fromString("0000fe82-0000-1000-0000-009132591325");
+    private static final UUID CCC_DESCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+
+    private BlePeripheralDevice peripheral;
+    private RecordingGattServer server;
+    private BluetoothGattServerCallback callback;
+    private BluetoothGattCharacteristic sakeCharacteristic;
+    private BluetoothDevice device;
+
+    private final List<byte[]> received = new ArrayList<>();
+    private final SlidingWindowReceiver receiver = new SlidingWindowReceiver(received::add);
+    private int delivered;
+    private int requestId;
+
+    @Before
+    public void setUp() {
+        Application application = RuntimeEnvironment.getApplication();
+        shadowOf(application).grantPermissions(Manifest.permission.ACCESS_FINE_LOCATION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            shadowOf(application).grantPermissions(Manifest.permission.BLUETOOTH_CONNECT,
+                    Manifest.permission.BLUETOOTH_ADVERTISE);
+        }
+        shadowOf(BluetoothAdapter.getDefaultAdapter()).setEnabled(true);
+
+        RecordingGattServer.latest = null;
+        peripheral = new BlePeripheralDevice(application);
+        peripheral.start();
+        server = RecordingGattServer.latest;
+        assertNotNull("GATT server not opened", server);
+        callback = server.getGattServerCallback();
+
+        // Services are added one by one, each after the previous one is confirmed
+        for (int i = 0; i < 2; i++) {
+            List<BluetoothGattService> services = server.addedServices();
+            callback.onServiceAdded(0, services.get(services.size() - 1));
+        }
+        for (BluetoothGattService service : server.addedServices()) {
+            if (service.getCharacteristic(SAKE_CHARACTERISTIC_UUID) != null) {
+                sakeCharacteristic = service.getCharacteristic(SAKE_CHARACTERISTIC_UUID);
+            }
+        }
+        assertNotNull("SAKE characteristic not registered", sakeCharacteristic);
+
+        device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS);
+        callback.onConnectionStateChange(device, 0, BluetoothProfile.STATE_CONNECTED);
+        callback.onMtuChanged(device, 185);
+    }
+
+    @After
+    public void tearDown() {
+        peripheral.close();
+    }
+
+    @Test
+    @Config(sdk = 30)
+    public void notifiesThroughCharacteristicValueBeforeApi33() {
+        byte[] message = transferMessage(false);
+
+        assertArrayEquals(message, received.get(0));
+        assertEquals(server.notifications.size(), server.legacyNotifications);
+    }
+
+    @Test
+    @Config(sdk = 34)
+    public void notifiesWithValueFromApi33() {
+        byte[] message = transferMessage(false);
+
+        assertArrayEquals(message, received.get(0));
+        assertEquals(0, server.legacyNotifications);
+    }
+
+    @Test
+    @Config(sdk = 34)
+    public void retransmitsLostNotificationAfterTimeout() {
+        byte[] message = transferMessage(true);
+
+        assertArrayEquals(message, received.get(0));
+        assertTrue("Only " + server.notifications.size() + " notifications",
+                server.notifications.size() > (message.length + 180) / 181);
+    }
+
+    @Test
+    @Config(sdk = 34)
+    public void holdsNotificationsBackUntilSubscribed() {
+        byte[] message = new byte[500];
+        new Random(5).nextBytes(message);
+        peripheral.sendReliable(message);
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(200));
+        assertTrue(server.notifications.isEmpty());
+
+        subscribe();
+        receive(false);
+
+        assertArrayEquals(message, received.get(0));
+    }
+
+    private byte[] transferMessage(boolean loseFirst) {
+        byte[] message = new byte[2000];
+        new Random(9).nextBytes(message);
+        subscribe();
+        peripheral.sendReliable(message);
+        receive(loseFirst);
+        return message;
+    }
+
+    // The device is not bonded, so the subscription lasts for this connection only
+    private void subscribe() {
+        BluetoothGattDescriptor ccc = sakeCharacteristic.getDescriptor(CCC_DESCRIPTOR_UUID);
+        callback.onDescriptorWriteRequest(device, requestId++, ccc, false, true, 0, new byte[]{0x01, 0x00});
+    }
+
+    // Plays the central until a message arrives, optionally losing the first notification on the air
+    private void receive(boolean loseFirst) {
+        for (int step = 0; received.isEmpty(); step++) {
+            assertTrue("Transfer did not complete", step < 1000);
+            shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(10));
+
+            while (delivered < server.notifications.size()) {
+                byte[] frame = server.notifications.get(delivered++);
+                callback.onNotificationSent(device, 0);
+                if (loseFirst && delivered == 1) {
+                    continue;
+                }
+                byte[] ack = receiver.onFrame(frame);
+                callback.onCharacteristicWriteRequest(device, requestId++, sakeCharacteristic, false, true, 0, ack);
+            }
+        }
+    }
+
+    @Implements(BluetoothGattServer.class)
+    public static class RecordingGattServer extends ShadowBluetoothGattServer {
+        static RecordingGattServer latest;
+
+        final List<byte[]> notifications = new ArrayList<>();
+        int legacyNotifications;
+
+        public RecordingGattServer() {
+            latest = this;
+        }
+
+        List<BluetoothGattService> addedServices() {
+            return getServices();
+        }
+
+        @Implementation
+        protected boolean notifyCharacteristicChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                                                      boolean confirm) {
+            legacyNotifications++;
+            notifications.add(characteristic.getValue().clone());
+            return true;
+        }
+
+        @Implementation(minSdk = Build.VERSION_CODES.TIRAMISU)
+        protected int notifyCharacteristicChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                                                  boolean confirm, byte[] value) {
+            notifications.add(value.clone());
+            return BluetoothStatusCodes.SUCCESS;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package me.palmarci.pumpconnector;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class SessionStoreHolderTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sharesOneStorePerDirectory() {
+        SessionStoreHolder first = SessionStoreHolder.acquire(folder.getRoot());
+        SessionStoreHolder second = SessionStoreHolder.acquire(folder.getRoot());
+        try {
+            assertSame(first.getStore(), second.getStore());
+        } finally {
+            first.release();
+            second.release();
+        }
+    }
+
+    @Test
+    public void lastReleaseSavesBeforeTheNextAcquire() {
+        SessionStoreHolder first = SessionStoreHolder.acquire(folder.getRoot());
+        SessionStoreHolder second = SessionStoreHolder.acquire(folder.getRoot());
+        first.getStore().get(ADDRESS).setMtu(185);
+        first.release();
+        second.release();
+
+        // Like a rotation: the old activity releases, the new one acquires straight away
+        SessionStoreHolder reopened = SessionStoreHolder.acquire(folder.getRoot());
+        try {
+            assertNotSame(first.getStore(), reopened.getStore());
+            assertEquals(185, reopened.getStore().peek(ADDRESS).getMtu());
+        } finally {
+            reopened.release();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package me.palmarci.pumpconnector;
+
+import android.util.AtomicFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class SessionStoreTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger scheduledSaves = new AtomicInteger();
+    private final JvmKeyProtector keyProtector = new JvmKeyProtector();
+
+    private SessionStore newStore() {
+        return newStore(keyProtector);
+    }
+
+    private SessionStore newStore(SessionStore.KeyProtector protector) {
+        return new SessionStore(folder.getRoot(), protector, scheduledSaves::incrementAndGet);
+    }
+
+    @Test
+    public void restoresSessionAfterRestart() {
+        SessionStore store = newStore();
+        SessionState session = store.get(ADDRESS);
+        session.setSakeSession(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, 300, 1L << 40);
+        session.setCccValue(0x0001);
+        session.setMtu(185);
+        session.confirmHistoryPosition(123456789L);
+        store.get("FF:EE:DD:CC:BB:AA").setMtu(247);
+        store.save();
+
+        SessionState restored = newStore().get(ADDRESS);
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, restored.getSakeKey());
+        assertEquals(300, restored.getTxCounter());
+        assertEquals(1L << 40, restored.getRxCounter());
+        assertEquals(0x0001, restored.getCccValue());
+        assertEquals(185, restored.getMtu());
+        assertEquals(123456789L, restored.getHistoryPosition());
+        assertEquals(247, newStore().get("FF:EE:DD:CC:BB:AA").getMtu());
+    }
+
+    @Test
+    public void loadsSnapshotLazily() {
+        SessionStore store = newStore();
+
+        SessionStore writer = newStore();
+        writer.get(ADDRESS).confirmHistoryPosition(42);
+        writer.save();
+
+        assertEquals(42, store.get(ADDRESS).getHistoryPosition());
+    }
+
+    @Test
+    public void restoresAllSixteenCccBits() {
+        SessionStore store = newStore();
+        store.get(ADDRESS).setCccValue(0x0103);
+        store.save();
+
+        assertEquals(0x0103, newStore().get(ADDRESS).getCccValue());
+    }
+
+    @Test
+    public void schedulesSaveOnlyForRealChanges() {
+        SessionState session = newStore().get(ADDRESS);
+        session.setMtu(185);
+        session.setMtu(185);
+        session.setCounters(0, 0);
+        assertEquals(1, scheduledSaves.get());
+    }
+
+    @Test
+    public void reencodesOnlyChangedRecords() {
+        SessionStore store = newStore();
+        SessionState first = store.get(ADDRESS);
+        SessionState second = store.get("FF:EE:DD:CC:BB:AA");
+        first.setMtu(185);
+        second.setMtu(247);
+        store.save();
+        byte[] firstRecord = first.encoded;
+
+        second.setCounters(1, 2);
+        assertNull(second.encoded);
+        store.save();
+
+        assertSame(firstRecord, first.encoded);
+        assertNotNull(second.encoded);
+    }
+
+    @Test
+    public void discardsCorruptSnapshot() throws IOException {
+        SessionStore store = newStore();
+        store.get(ADDRESS).setMtu(185);
+        store.save();
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(), SessionStore.FILE_NAME), "rw")) {
+            file.seek(8);
+            file.write(0x7F);
+        }
+
+        assertEquals(SlidingWindowSender.DEFAULT_MTU, newStore().get(ADDRESS).getMtu());
+    }
+
+    @Test
+    public void ignoresUnfinishedWrite() throws IOException {
+        SessionStore store = newStore();
+        store.get(ADDRESS).setMtu(185);
+        store.save();
+
+        // Crash halfway through the next save
+        FileOutputStream out = new AtomicFile(new File(folder.getRoot(), SessionStore.FILE_NAME)).startWrite();
+        out.write(new byte[]{0x02, 0x53});
+        out.close();
+
+        assertEquals(185, newStore().get(ADDRESS).getMtu());
+    }
+
+    @Test
+    public void neverWritesSakeKeyInPlainText() throws IOException {
+        byte[] key = {0x5A, 0x4B, 0x45, 0x59, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, 0x00, (byte) 0xAB, (byte) 0xCD};
+        SessionStore store = newStore();
+        store.get(ADDRESS).setSakeSession(key, 1, 2);
+        store.save();
+
+        byte[] snapshot = Files.readAllBytes(new File(folder.getRoot(), SessionStore.FILE_NAME).toPath());
+        for (int i = 0; i + key.length <= snapshot.length; i++) {
+            boolean match = true;
+            for (int j = 0; j < key.length && match; j++) {
+                match = snapshot[i + j] == key[j];
+            }
+            assertFalse("Plain key at offset " + i, match);
+        }
+        assertArrayEquals(key, newStore().get(ADDRESS).getSakeKey());
+    }
+
+    @Test
+    public void dropsKeyThatCannotBeUnwrapped() {
+        SessionStore store = newStore();
+        store.get(ADDRESS).setSakeSession(new byte[]{1, 2, 3, 4}, 5, 6);
+        store.get(ADDRESS).setMtu(185);
+        store.save();
+
+        // Keystore key lost, e.g. after the lock screen was reset
+        SessionState restored = newStore(new JvmKeyProtector()).get(ADDRESS);
+        assertFalse(restored.hasSakeKey());
+        assertEquals(185, restored.getMtu());
+        assertEquals(5, restored.getTxCounter());
+    }
+
+    @Test
+    public void keepsRecordWhenKeyCannotBeWrapped() {
+        SessionStore store = newStore(new SessionStore.KeyProtector() {
+            @Override
+            public byte[] wrap(byte[] key, byte[] associatedData) throws GeneralSecurityException {
+                throw new GeneralSecurityException("Keystore locked");
+            }
+
+            @Override
+            public byte[] unwrap(byte[] wrappedKey, byte[] associatedData) {
+                throw new AssertionError();
+            }
+        });
+        store.get(ADDRESS).setSakeSession(new byte[]{1, 2, 3, 4}, 5, 6);
+        store.save();
+
+        SessionState restored = newStore().get(ADDRESS);
+        assertFalse(restored.hasSakeKey());
+        assertEquals(5, restored.getTxCounter());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedDevice() {
+        SessionStore store = newStore();
+        for (int i = 0; i <= SessionStore.MAX_SESSIONS; i++) {
+            store.get(String.format("00:00:00:00:00:%02X", i)).setMtu(100 + i);
+        }
+        store.save();
+
+        SessionStore restored = newStore();
+        assertEquals(SlidingWindowSender.DEFAULT_MTU, restored.get("00:00:00:00:00:00").getMtu());
+        assertEquals(100 + SessionStore.MAX_SESSIONS,
+                restored.get(String.format("00:00:00:00:00:%02X", SessionStore.MAX_SESSIONS)).getMtu());
+    }
+
+    @Test
+    public void storesRecordOnlyOnceStateChanges() {
+        SessionStore store = newStore();
+        assertNull(store.peek(ADDRESS));
+
+        SessionState session = store.get(ADDRESS);
+        session.setCccValue(0);
+        assertNull(store.peek(ADDRESS));
+        assertEquals(0, scheduledSaves.get());
+
+        session.setCccValue(0x0001);
+        assertSame(session, store.peek(ADDRESS));
+    }
+
+    @Test
+    public void evictsDevicesWithoutKeyFirst() {
+        SessionStore store = newStore();
+        store.get(ADDRESS).setSakeSession(new byte[]{1, 2, 3}, 1, 2);
+        for (int i = 0; i < SessionStore.MAX_SESSIONS; i++) {
+            store.get(String.format("00:00:00:00:00:%02X", i)).setMtu(100 + i);
+        }
+        store.save();
+
+        SessionStore restored = newStore();
+        assertArrayEquals(new byte[]{1, 2, 3}, restored.peek(ADDRESS).getSakeKey());
+        assertNull(restored.peek("00:00:00:00:00:00"));
+        assertNotNull(restored.peek("00:00:00:00:00:01"));
+    }
+
+    @Test
+    public void keepsSessionsInMemoryWithoutDirectory() {
+        SessionStore store = new SessionStore(null, null, () -> { });
+        store.get(ADDRESS).setMtu(185);
+        store.save();
+        assertEquals(185, store.get(ADDRESS).getMtu());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedAddress() {
+        newStore().get("unknown");
+    }
+
+    /**
+     * AES-GCM with an in-memory key, the Android Keystore is not available on the JVM.
+     */
+    private static final class JvmKeyProtector implements SessionStore.KeyProtector {
+        private final SecureRandom random = new SecureRandom();
+        private final SecretKey secretKey;
+
+        JvmKeyProtector() {
+            try {
+                KeyGenerator generator = KeyGenerator.getInstance("AES");
+                generator.init(256);
+                secretKey = generator.generateKey();
+            } catch (GeneralSecurityException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public byte[] wrap(byte[] key, byte[] associatedData) throws GeneralSecurityException {
+            byte[] wrapped = new byte[12 + key.length + 16];
+            random.nextBytes(wrapped);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(128, wrapped, 0, 12));
+            cipher.updateAAD(associatedData);
+            cipher.doFinal(key, 0, key.length, wrapped, 12);
+            return wrapped;
+        }
+
+        @Override
+        public byte[] unwrap(byte[] wrappedKey, byte[] associatedData) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(128, wrappedKey, 0, 12));
+            cipher.updateAAD(associatedData);
+            return cipher.doFinal(wrappedKey, 12, wrappedKey.length - 12);
+        }
+    }
+}
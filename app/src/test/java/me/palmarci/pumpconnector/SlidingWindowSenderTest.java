@@ -0,0 +1,250 @@
+package me.palmarci.pumpconnector;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the sliding-window protocol over a simulated lossy loopback link on the JVM.
+ */
+public class SlidingWindowSenderTest {
+
+    // Half a connection interval each way, one notification per ms on the air
+    private static final long LINK_LATENCY_MS = 15;
+    private static final long FRAME_TIME_MS = 1;
+    private static final long POLL_INTERVAL_MS = 10;
+    private static final long TIME_LIMIT_MS = 10 * 60 * 1000;
+
+    @Test
+    public void deliversEveryMessageInOrderOverLossyLink() {
+        LossyLoopback loopback = new LossyLoopback(0.2, 42);
+        List<byte[]> sent = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 50; i++) {
+            byte[] message = new byte[1 + random.nextInt(2000)];
+            random.nextBytes(message);
+            sent.add(message);
+            loopback.sender.offer(message);
+        }
+
+        loopback.run();
+
+        assertEquals(sent.size(), loopback.received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertArrayEquals(sent.get(i), loopback.received.get(i));
+        }
+        assertTrue(loopback.sender.getRetransmissions() > 0);
+    }
+
+    @Test
+    public void survivesSequenceNumberWraparound() {
+        LossyLoopback loopback = new LossyLoopback(0.05, 1);
+        byte[] message = new byte[70000 * 16];
+        new Random(3).nextBytes(message);
+        loopback.sender.offer(message);
+
+        loopback.run();
+
+        assertEquals(1, loopback.received.size());
+        assertArrayEquals(message, loopback.received.get(0));
+    }
+
+    @Test
+    public void shrinksWindowOnLossPastHalfTheSequenceSpace() {
+        List<byte[]> frames = new ArrayList<>();
+        long[] now = {0};
+        SlidingWindowSender sender = new SlidingWindowSender(frames::add, () -> now[0]);
+        SlidingWindowReceiver receiver = new SlidingWindowReceiver(message -> { });
+        sender.offer(new byte[45000 * 16]);
+
+        // Frames are acknowledged one by one, except a single drop after 40000 clean frames
+        int delivered = 0;
+        int smallestWindowAfterDrop = Integer.MAX_VALUE;
+        while (!frames.isEmpty()) {
+            byte[] frame = frames.remove(0);
+            now[0]++;
+            sender.onFrameSent();
+            if (delivered++ == 40000) {
+                assertEquals(SlidingWindowSender.MAX_WINDOW, sender.getWindow());
+                continue;
+            }
+            sender.onAck(receiver.onFrame(frame));
+            if (delivered > 40000) {
+                smallestWindowAfterDrop = Math.min(smallestWindowAfterDrop, sender.getWindow());
+            }
+        }
+
+        assertTrue(sender.isIdle());
+        assertEquals(1, sender.getRetransmissions());
+        assertTrue("Window stayed at " + smallestWindowAfterDrop,
+                smallestWindowAfterDrop < SlidingWindowSender.MAX_WINDOW);
+    }
+
+    @Test
+    public void retransmitsHoleSentWithinTheSameMillisecond() {
+        List<byte[]> frames = new ArrayList<>();
+        SlidingWindowSender sender = new SlidingWindowSender(frames::add, () -> 0);
+        SlidingWindowReceiver receiver = new SlidingWindowReceiver(message -> { });
+        sender.offer(new byte[4 * 16]);
+
+        // The first frame is lost, the three after it are selectively acknowledged before the clock ticks
+        for (int i = 0; i < 4; i++) {
+            byte[] frame = frames.get(i);
+            sender.onFrameSent();
+            if (i > 0) {
+                sender.onAck(receiver.onFrame(frame));
+            }
+        }
+
+        assertEquals(1, sender.getRetransmissions());
+        assertEquals(0, SlidingWindowSender.readUint16(frames.get(frames.size() - 1), 1));
+    }
+
+    @Test
+    public void halvesWindowOnTimeoutDuringRecovery() {
+        List<byte[]> frames = new ArrayList<>();
+        long[] now = {0};
+        SlidingWindowSender sender = new SlidingWindowSender(frames::add, () -> now[0]);
+        SlidingWindowReceiver receiver = new SlidingWindowReceiver(message -> { });
+        sender.offer(new byte[4 * 16]);
+
+        // Selective ACKs shrink the window and retransmit the first frame, which is lost again
+        for (int i = 0; i < 4; i++) {
+            byte[] frame = frames.get(i);
+            sender.onFrameSent();
+            if (i > 0) {
+                sender.onAck(receiver.onFrame(frame));
+            }
+        }
+        sender.onFrameSent();
+        int windowAfterSack = sender.getWindow();
+
+        now[0] += 10 * sender.getRetransmissionTimeout();
+        sender.poll();
+
+        assertEquals(2, sender.getRetransmissions());
+        assertTrue("Window stayed at " + sender.getWindow(), sender.getWindow() <= windowAfterSack / 2);
+    }
+
+    @Test
+    public void ignoresWritesThatAreNotAcks() {
+        LossyLoopback loopback = new LossyLoopback(0, 0);
+        assertFalse(loopback.sender.onAck(new byte[]{0x01, 0x02}));
+        assertFalse(loopback.sender.onAck(null));
+        assertTrue(loopback.sender.isIdle());
+    }
+
+    @Test
+    public void slidingWindowOutperformsStopAndWait() {
+        byte[] transfer = new byte[64 * 1024];
+        new Random(11).nextBytes(transfer);
+
+        LossyLoopback windowed = new LossyLoopback(0.1, 5);
+        windowed.sender.setMtu(185);
+        windowed.sender.offer(transfer);
+        long windowedMs = windowed.run();
+
+        LossyLoopback stopAndWait = new LossyLoopback(0.1, 5);
+        stopAndWait.sender.setMtu(185);
+        stopAndWait.sender.setMaxWindow(1);
+        stopAndWait.sender.offer(transfer);
+        long stopAndWaitMs = stopAndWait.run();
+
+        assertArrayEquals(transfer, windowed.received.get(0));
+        assertArrayEquals(transfer, stopAndWait.received.get(0));
+
+        assertTrue(windowed.report("sliding window", transfer.length, windowedMs) + ", "
+                        + stopAndWait.report("stop-and-wait", transfer.length, stopAndWaitMs),
+                windowedMs * 4 < stopAndWaitMs);
+    }
+
+    /**
+     * Discrete event simulation of a link that drops notifications and ACK writes at random.
+     */
+    private static final class LossyLoopback {
+        private final PriorityQueue<Event> events = new PriorityQueue<>();
+        private final Random random;
+        private final double lossRate;
+        private long now;
+        private long order;
+
+        final List<byte[]> received = new ArrayList<>();
+        final SlidingWindowSender sender;
+        final SlidingWindowReceiver receiver;
+
+        LossyLoopback(double lossRate, long seed) {
+            this.lossRate = lossRate;
+            this.random = new Random(seed);
+            this.receiver = new SlidingWindowReceiver(received::add);
+            this.sender = new SlidingWindowSender(this::transmit, () -> now);
+        }
+
+        // Returns the simulated time at which the last frame was acknowledged
+        long run() {
+            schedule(POLL_INTERVAL_MS, this::pollSender);
+            while (!events.isEmpty() && !sender.isIdle()) {
+                Event event = events.poll();
+                now = event.time;
+                assertTrue("Transfer did not complete", now < TIME_LIMIT_MS);
+                event.action.run();
+            }
+            assertTrue(sender.isIdle());
+            return now;
+        }
+
+        String report(String name, int bytes, long elapsedMs) {
+            return String.format("%s: %d bytes in %d ms (%.1f kB/s), %d frames, %d retransmissions, window %d",
+                    name, bytes, elapsedMs, bytes / (double) elapsedMs,
+                    sender.getFramesSent(), sender.getRetransmissions(), sender.getWindow());
+        }
+
+        private boolean transmit(byte[] frame) {
+            schedule(FRAME_TIME_MS, sender::onFrameSent);
+            if (random.nextDouble() >= lossRate) {
+                schedule(LINK_LATENCY_MS, () -> deliver(frame));
+            }
+            return true;
+        }
+
+        private void deliver(byte[] frame) {
+            byte[] ack = receiver.onFrame(frame);
+            if (random.nextDouble() >= lossRate) {
+                schedule(LINK_LATENCY_MS, () -> sender.onAck(ack));
+            }
+        }
+
+        private void pollSender() {
+            sender.poll();
+            schedule(POLL_INTERVAL_MS, this::pollSender);
+        }
+
+        private void schedule(long delay, Runnable action) {
+            events.add(new Event(now + delay, order++, action));
+        }
+    }
+
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long order;
+        final Runnable action;
+
+        Event(long time, long order, Runnable action) {
+            this.time = time;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return Long.compare(time, other.time);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}